@@ -0,0 +1,146 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Adjusts the number of operations per bulk request and the number of concurrent bulk requests
+ * to the observed latency and rejections of the cluster. A slow or rejecting cluster halves the
+ * batch size immediately, while additional capacity is only probed after several fast bulks in a row.
+ */
+public class AdaptiveBulkSizing {
+
+    private static final Logger log = LogManager.getLogger(AdaptiveBulkSizing.class);
+
+    // number of consecutive fast bulk requests before we try to increase the load
+    private static final int INCREASE_AFTER_SUCCESSES = 3;
+
+    private final int minOperations;
+    private final int maxOperations;
+    private final int maxConcurrentRequests;
+    private final long targetLatency;
+
+    private volatile int currentOperations;
+
+    private int currentConcurrentRequests;
+
+    private int requestsInFlight = 0;
+
+    private int successesInRow = 0;
+
+    public AdaptiveBulkSizing(ElasticConfig config) {
+        this.minOperations = Math.max(1, config.bulkAdaptiveMinOperations);
+        this.maxOperations = Math.max(minOperations, config.bulkAdaptiveMaxOperations);
+        this.maxConcurrentRequests = Math.max(1, config.bulkAdaptiveMaxConcurrentRequests);
+        this.targetLatency = config.bulkAdaptiveTargetLatency;
+
+        this.currentOperations = Math.min(maxOperations, Math.max(minOperations, config.bulkMaxOperations));
+        this.currentConcurrentRequests = Math.min(maxConcurrentRequests, Math.max(1, config.bulkMaxConcurrentRequests));
+    }
+
+    /**
+     * @return the number of operations after which a bulk request should be sent
+     */
+    public int getMaxOperations() {
+        return currentOperations;
+    }
+
+    public synchronized int getConcurrentRequests() {
+        return currentConcurrentRequests;
+    }
+
+    /**
+     * Block until another bulk request may be sent to the cluster. Must not be called from a bulk listener,
+     * since releasing the permits requires the bulk ingester to process responses.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (requestsInFlight >= currentConcurrentRequests) {
+            wait();
+        }
+        requestsInFlight++;
+    }
+
+    /**
+     * Signal that a bulk request has been answered, successfully or not.
+     */
+    public synchronized void release() {
+        if (requestsInFlight > 0) {
+            requestsInFlight--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Record the outcome of a bulk request that was answered by the cluster.
+     *
+     * @param latency  is the time in milliseconds between sending the request and receiving the response
+     * @param rejected is true if at least one item was rejected because the cluster was overloaded
+     */
+    public synchronized void onBulkCompleted(long latency, boolean rejected) {
+        if (rejected || latency > targetLatency * 2) {
+            decrease();
+        } else if (latency < targetLatency) {
+            successesInRow++;
+            if (successesInRow >= INCREASE_AFTER_SUCCESSES) {
+                increase();
+            }
+        } else {
+            successesInRow = 0;
+        }
+    }
+
+    /**
+     * Record a bulk request which could not be sent or was not answered at all.
+     */
+    public synchronized void onBulkFailed() {
+        decrease();
+    }
+
+    private void decrease() {
+        successesInRow = 0;
+        currentOperations = Math.max(minOperations, currentOperations / 2);
+        if (currentConcurrentRequests > 1) {
+            currentConcurrentRequests--;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Decreased bulk size to " + currentOperations + " operations and " + currentConcurrentRequests + " concurrent requests");
+        }
+    }
+
+    private void increase() {
+        successesInRow = 0;
+        if (currentOperations < maxOperations) {
+            currentOperations = Math.min(maxOperations, currentOperations + Math.max(1, currentOperations / 4));
+        } else if (currentConcurrentRequests < maxConcurrentRequests) {
+            currentConcurrentRequests++;
+            notifyAll();
+        } else {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Increased bulk size to " + currentOperations + " operations and " + currentConcurrentRequests + " concurrent requests");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Context of a single operation added to the bulk processor, which is handed back in the bulk listener.
+ */
+public class BulkItemContext {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final int attempt;
+
+    private final long sequence;
+
+    private final CompletableFuture<BulkResponseItem> future;
+
+    public BulkItemContext() {
+        this(null);
+    }
+
+    /**
+     * @param future is completed with the result of the operation after its last attempt
+     */
+    public BulkItemContext(CompletableFuture<BulkResponseItem> future) {
+        this(0, SEQUENCE.incrementAndGet(), future);
+    }
+
+    private BulkItemContext(int attempt, long sequence, CompletableFuture<BulkResponseItem> future) {
+        this.attempt = attempt;
+        this.sequence = sequence;
+        this.future = future;
+    }
+
+    /**
+     * @return how often this operation has been retried already
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * @return the order in which the operation was first added, which is kept for all of its retries
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return a context for sending the operation once more
+     */
+    public BulkItemContext nextAttempt() {
+        return new BulkItemContext(attempt + 1, sequence, future);
+    }
+
+    /**
+     * Report the answer of the cluster for the last attempt, which might also contain an error.
+     */
+    public void complete(BulkResponseItem item) {
+        if (future != null) future.complete(item);
+    }
+
+    /**
+     * Report that the operation could not be sent to the cluster at all.
+     */
+    public void fail(Throwable failure) {
+        if (future != null) future.completeExceptionally(failure);
+    }
+
+}
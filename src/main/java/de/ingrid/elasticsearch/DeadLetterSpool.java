@@ -0,0 +1,212 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.json.JsonpMapper;
+import jakarta.json.stream.JsonGenerator;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Append-only file collecting bulk operations which could not be indexed even after several retries.
+ * The file is written in the NDJSON format of the bulk API, so that it can also be sent to the cluster
+ * manually, e.g. with curl.
+ */
+public class DeadLetterSpool {
+
+    private static final Logger log = LogManager.getLogger(DeadLetterSpool.class);
+
+    private static final int REPLAY_CHUNK_SIZE = 500;
+
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    private final Path file;
+
+    private final JsonpMapper mapper;
+
+    public DeadLetterSpool(Path file, JsonpMapper mapper) {
+        this.file = file;
+        this.mapper = mapper;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Append the operations to the spool file.
+     */
+    public void append(List<BulkOperation> operations) {
+        if (operations.isEmpty()) return;
+
+        List<String> lines = new ArrayList<>();
+        for (BulkOperation operation : operations) {
+            Iterator<?> values = operation._serializables();
+            while (values.hasNext()) {
+                Object value = values.next();
+                if (value != null) {
+                    lines.add(toJson(value));
+                }
+            }
+        }
+
+        if (appendLines(lines)) {
+            log.warn("Wrote " + operations.size() + " failed bulk operations to dead letter spool: " + file);
+        }
+    }
+
+    private synchronized boolean appendLines(List<String> lines) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Could not write failed bulk operations to dead letter spool: " + file, e);
+            return false;
+        }
+    }
+
+    private String toJson(Object value) {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = mapper.jsonProvider().createGenerator(out)) {
+            mapper.serialize(value, generator);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Send all spooled operations to the cluster again. The spool file is moved aside before, so that
+     * operations which are rejected again are collected in a new spool file. If a replay was interrupted
+     * before, then the remaining operations of that replay are sent first.
+     *
+     * @param restClient is the low-level client used to send the raw bulk data
+     * @return the number of replayed operations
+     */
+    public int replay(RestClient restClient) throws IOException {
+        Path replayFile = file.resolveSibling(file.getFileName() + ".replay");
+        int count = 0;
+
+        if (Files.exists(replayFile)) {
+            count += replayFile(restClient, replayFile);
+        }
+
+        synchronized (this) {
+            if (!Files.exists(file)) return count;
+            Files.move(file, replayFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        count += replayFile(restClient, replayFile);
+        return count;
+    }
+
+    private int replayFile(RestClient restClient, Path replayFile) throws IOException {
+        int count = 0;
+        List<String> chunk = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+            String action;
+            while ((action = reader.readLine()) != null) {
+                if (action.isEmpty()) continue;
+
+                String record = action;
+                // every operation except delete is followed by a line containing the document
+                if (!action.startsWith("{\"delete\"")) {
+                    String source = reader.readLine();
+                    if (source == null) break;
+                    record += "\n" + source;
+                }
+                chunk.add(record);
+                count++;
+
+                if (chunk.size() >= REPLAY_CHUNK_SIZE) {
+                    sendChunk(restClient, chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            sendChunk(restClient, chunk);
+        }
+
+        Files.delete(replayFile);
+        log.info("Replayed " + count + " bulk operations from dead letter spool: " + file);
+        return count;
+    }
+
+    private void sendChunk(RestClient restClient, List<String> records) throws IOException {
+        Request request = new Request("POST", "/_bulk");
+        request.setEntity(new StringEntity(String.join("\n", records) + "\n", NDJSON));
+        Response response = restClient.performRequest(request);
+
+        // collect items which failed again, so that they are not lost
+        try {
+            JSONObject result = (JSONObject) new JSONParser().parse(EntityUtils.toString(response.getEntity()));
+            if (!Boolean.TRUE.equals(result.get("errors"))) return;
+
+            JSONArray items = (JSONArray) result.get("items");
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < items.size() && i < records.size(); i++) {
+                JSONObject item = (JSONObject) ((JSONObject) items.get(i)).values().iterator().next();
+                if (item.get("error") != null) {
+                    log.error("Replay of bulk operation failed again: " + item.get("error"));
+                    failed.add(records.get(i));
+                }
+            }
+            if (!failed.isEmpty()) {
+                appendLines(failed);
+            }
+        } catch (ParseException e) {
+            log.error("Could not parse bulk response of dead letter replay", e);
+        }
+    }
+}
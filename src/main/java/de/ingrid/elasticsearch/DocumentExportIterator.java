@@ -0,0 +1,129 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import de.ingrid.utils.ElasticDocument;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Iterates lazily over all documents of a point-in-time by requesting one page after the other with
+ * search_after. Only the current page is held in memory. If a slice is given, only the documents of
+ * this slice are returned, so that several slices can be read in parallel.
+ */
+public class DocumentExportIterator implements Iterator<ElasticDocument> {
+
+    private final ElasticsearchClient client;
+
+    private final Time keepAlive;
+
+    private final int batchSize;
+
+    private final int sliceId;
+
+    private final int sliceMax;
+
+    // can change with every response, shared with all iterators of the same point-in-time
+    private final AtomicReference<String> pitId;
+
+    private List<FieldValue> searchAfter = null;
+
+    private Iterator<Hit<ElasticDocument>> page = Collections.emptyIterator();
+
+    private boolean lastPage = false;
+
+    /**
+     * @param pitId    holds the most recent id of the point-in-time, which is updated with every response
+     * @param sliceMax is the number of slices, the slice is ignored if it's smaller than 2
+     */
+    public DocumentExportIterator(ElasticsearchClient client, AtomicReference<String> pitId, Time keepAlive, int batchSize, int sliceId, int sliceMax) {
+        this.client = client;
+        this.pitId = pitId;
+        this.keepAlive = keepAlive;
+        this.batchSize = batchSize;
+        this.sliceId = sliceId;
+        this.sliceMax = sliceMax;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext() && !lastPage) {
+            fetchNextPage();
+        }
+        return page.hasNext();
+    }
+
+    @Override
+    public ElasticDocument next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next().source();
+    }
+
+    private void fetchNextPage() {
+        SearchRequest.Builder srb = new SearchRequest.Builder()
+                .pit(p -> p.id(pitId.get()).keepAlive(keepAlive))
+                .size(batchSize)
+                // the most efficient order, which is stable within a point-in-time
+                .sort(s -> s.field(f -> f.field("_shard_doc").order(SortOrder.Asc)))
+                .trackTotalHits(t -> t.enabled(false));
+        if (searchAfter != null) {
+            srb.searchAfter(searchAfter);
+        }
+        if (sliceMax > 1) {
+            srb.slice(s -> s.id(String.valueOf(sliceId)).max(sliceMax));
+        }
+
+        SearchResponse<ElasticDocument> response;
+        try {
+            response = client.search(srb.build(), ElasticDocument.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        List<Hit<ElasticDocument>> hits = response.hits().hits();
+        if (response.pitId() != null) {
+            pitId.set(response.pitId());
+        }
+        if (hits.size() < batchSize) {
+            lastPage = true;
+        }
+        if (!hits.isEmpty()) {
+            searchAfter = hits.get(hits.size() - 1).sort();
+        }
+        page = hits.iterator();
+    }
+}
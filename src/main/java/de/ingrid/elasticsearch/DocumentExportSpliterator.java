@@ -0,0 +1,105 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Time;
+import de.ingrid.utils.ElasticDocument;
+
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Reads the slices of a point-in-time one after the other. Splitting hands over the slices not read yet,
+ * so that a parallel stream reads different slices concurrently.
+ */
+public class DocumentExportSpliterator implements Spliterator<ElasticDocument> {
+
+    private final ElasticsearchClient client;
+
+    private final AtomicReference<String> pitId;
+
+    private final Time keepAlive;
+
+    private final int batchSize;
+
+    private final int sliceMax;
+
+    private int nextSlice;
+
+    // exclusive
+    private final int endSlice;
+
+    private DocumentExportIterator current = null;
+
+    /**
+     * @param pitId holds the most recent id of the point-in-time, which is updated with every response
+     */
+    public DocumentExportSpliterator(ElasticsearchClient client, AtomicReference<String> pitId, Time keepAlive, int batchSize, int sliceMax) {
+        this(client, pitId, keepAlive, batchSize, sliceMax, 0, sliceMax);
+    }
+
+    private DocumentExportSpliterator(ElasticsearchClient client, AtomicReference<String> pitId, Time keepAlive, int batchSize, int sliceMax, int nextSlice, int endSlice) {
+        this.client = client;
+        this.pitId = pitId;
+        this.keepAlive = keepAlive;
+        this.batchSize = batchSize;
+        this.sliceMax = sliceMax;
+        this.nextSlice = nextSlice;
+        this.endSlice = endSlice;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ElasticDocument> action) {
+        while (current == null || !current.hasNext()) {
+            if (nextSlice >= endSlice) {
+                return false;
+            }
+            current = new DocumentExportIterator(client, pitId, keepAlive, batchSize, nextSlice++, sliceMax);
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    @Override
+    public Spliterator<ElasticDocument> trySplit() {
+        if (endSlice - nextSlice < 2) {
+            return null;
+        }
+        int middle = nextSlice + (endSlice - nextSlice) / 2;
+        DocumentExportSpliterator prefix = new DocumentExportSpliterator(client, pitId, keepAlive, batchSize, sliceMax, nextSlice, middle);
+        nextSlice = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return 0;
+    }
+}
@@ -75,6 +75,35 @@ public class ElasticConfig {
     @Value("${index.search.groupByUrl:false}")
     public boolean groupByUrl;
 
+    @Value("${index.search.details.concurrency:10}")
+    public int detailsConcurrency;
+
+    // in milliseconds for all details of a request, 0 waits until all details have been fetched
+    @Value("${index.search.details.timeout:0}")
+    public long detailsTimeout;
+
+    // request facets separately and in parallel to the hits, so that they can be cached by elasticsearch while paging
+    @Value("${index.search.facets.separateRequest:false}")
+    public boolean separateFacetRequest;
+
+    // how long a point-in-time is kept between two pages, when paging with a continuation token or exporting documents
+    @Value("${index.search.pit.keepAlive:1m}")
+    public String pitKeepAlive;
+
+    @Value("${index.search.cache.enabled:false}")
+    public boolean searchCacheEnabled;
+
+    @Value("${index.search.cache.maxEntries:1000}")
+    public int searchCacheMaxEntries;
+
+    // sum of the number of hits and aggregations of all cached results
+    @Value("${index.search.cache.maxWeight:50000}")
+    public long searchCacheMaxWeight;
+
+    // in milliseconds, limits how long changes done by other clients are not visible
+    @Value("${index.search.cache.ttl:300000}")
+    public long searchCacheTtl;
+
     @Value("${plugdescription.partner:}")
     public String[] partner;
 
@@ -87,6 +116,26 @@ public class ElasticConfig {
     @Value("${elastic.communication.ibus:true}")
     public boolean esCommunicationThroughIBus;
 
+    // in milliseconds, how long to wait for the iBusses to answer a relayed index call, 0 waits without limit
+    @Value("${elastic.communication.ibus.callTimeout:0}")
+    public long iBusCallTimeout;
+
+    // minimum number of iBusses which have to answer a relayed index call successfully, otherwise it fails
+    @Value("${elastic.communication.ibus.quorum:0}")
+    public int iBusQuorum;
+
+    // maximum number of index calls running at the same time per iBus, further calls to the iBus fail immediately
+    @Value("${elastic.communication.ibus.maxConcurrentCalls:16}")
+    public int iBusMaxConcurrentCalls;
+
+    // maximum number of read calls waited for with the call timeout at the same time, further reads fail immediately
+    @Value("${elastic.communication.ibus.readThreads:16}")
+    public int iBusReadThreads;
+
+    // "first" sends reads to the first iBus, "roundRobin" distributes them, the next iBus is used on failure
+    @Value("${elastic.communication.ibus.readPolicy:first}")
+    public String iBusReadPolicy;
+
     @Value("${elastic.cluster.name:ingrid}")
     public String clusterName;
 
@@ -102,6 +151,91 @@ public class ElasticConfig {
     @Value("${elastic.trackTotalHits:true}")
     public boolean trackTotalHits;
 
+    @Value("${elastic.compression:false}")
+    public boolean compression;
+
+    @Value("${elastic.http.maxConnTotal:30}")
+    public int httpMaxConnTotal;
+
+    @Value("${elastic.http.maxConnPerRoute:10}")
+    public int httpMaxConnPerRoute;
+
+    // 0 uses one I/O thread per available processor
+    @Value("${elastic.http.ioThreads:0}")
+    public int httpIoThreads;
+
+    // in milliseconds, a negative value keeps connections alive as long as the server allows
+    @Value("${elastic.http.keepAlive:-1}")
+    public long httpKeepAlive;
+
+    @Value("${elastic.http.connectTimeout:1000}")
+    public int httpConnectTimeout;
+
+    @Value("${elastic.http.socketTimeout:30000}")
+    public int httpSocketTimeout;
+
+    @Value("${elastic.bulk.maxOperations:1000}")
+    public int bulkMaxOperations;
+
+    @Value("${elastic.bulk.maxSize:5242880}")
+    public long bulkMaxSize;
+
+    @Value("${elastic.bulk.maxConcurrentRequests:1}")
+    public int bulkMaxConcurrentRequests;
+
+    @Value("${elastic.bulk.flushInterval:5}")
+    public long bulkFlushInterval;
+
+    @Value("${elastic.bulk.adaptive:false}")
+    public boolean bulkAdaptive;
+
+    @Value("${elastic.bulk.adaptive.minOperations:100}")
+    public int bulkAdaptiveMinOperations;
+
+    @Value("${elastic.bulk.adaptive.maxOperations:10000}")
+    public int bulkAdaptiveMaxOperations;
+
+    @Value("${elastic.bulk.adaptive.maxConcurrentRequests:4}")
+    public int bulkAdaptiveMaxConcurrentRequests;
+
+    @Value("${elastic.bulk.adaptive.targetLatency:2000}")
+    public long bulkAdaptiveTargetLatency;
+
+    @Value("${elastic.bulk.retry.maxAttempts:3}")
+    public int bulkRetryMaxAttempts;
+
+    @Value("${elastic.bulk.retry.initialDelay:500}")
+    public long bulkRetryInitialDelay;
+
+    @Value("${elastic.bulk.retry.maxDelay:30000}")
+    public long bulkRetryMaxDelay;
+
+    // file collecting bulk operations which failed after all retries, e.g. in the data directory of the
+    // component, empty drops them
+    @Value("${elastic.bulk.deadLetterFile:}")
+    public String bulkDeadLetterFile;
+
+    // in milliseconds, alias changes of other processes are only seen after this time, 0 disables the cache
+    @Value("${elastic.metadataCache.ttl:0}")
+    public long metadataCacheTtl;
+
+    @Value("${elastic.bulkBuild.enabled:false}")
+    public boolean bulkBuildEnabled;
+
+    @Value("${elastic.bulkBuild.forceMerge:false}")
+    public boolean bulkBuildForceMerge;
+
+    @Value("${elastic.bulkBuild.maxSegments:1}")
+    public long bulkBuildMaxSegments;
+
+    // fields of the iPlug information, which change with every heartbeat
+    @Value("${elastic.heartbeat.volatileFields:lastHeartbeat}")
+    public String[] heartbeatVolatileFields;
+
+    // in milliseconds, how often heartbeats changing only volatile fields are written, 0 writes every heartbeat
+    @Value("${elastic.heartbeat.volatileInterval:0}")
+    public long heartbeatVolatileInterval;
+
     public IndexInfo[] activeIndices;
 
 }
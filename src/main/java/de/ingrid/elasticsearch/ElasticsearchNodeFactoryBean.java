@@ -22,6 +22,7 @@
  */
 package de.ingrid.elasticsearch;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
@@ -34,6 +35,7 @@ import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.elasticsearch.client.RestClient;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
@@ -58,6 +60,10 @@ public class ElasticsearchNodeFactoryBean implements FactoryBean<ElasticsearchCl
 
     private ElasticsearchClient client = null;
 
+    private RestClient restClient = null;
+
+    private ElasticsearchAsyncClient asyncClient = null;
+
     @Autowired
     public void init(ElasticConfig config) {
         this.config = config;
@@ -81,6 +87,20 @@ public class ElasticsearchNodeFactoryBean implements FactoryBean<ElasticsearchCl
         return client;
     }
 
+    /**
+     * @return a client sharing the transport of {@link #getClient()}, whose requests do not block the calling thread
+     */
+    public ElasticsearchAsyncClient getAsyncClient() {
+        return asyncClient;
+    }
+
+    /**
+     * @return the low-level client for requests not covered by the API client, like sending raw bulk data
+     */
+    public RestClient getRestClient() {
+        return restClient;
+    }
+
     public void createTransportClient(ElasticConfig config) throws IOException {
         if (this.client != null) {
             client.shutdown();
@@ -103,22 +123,39 @@ public class ElasticsearchNodeFactoryBean implements FactoryBean<ElasticsearchCl
 
         // Create the low-level client
         SSLContext finalSslContext = sslContext;
-        RestClient restClient = RestClient
+        restClient = RestClient
                 .builder(hosts.toArray(new HttpHost[0]))
                 .setHttpClientConfigCallback(httpClientBuilder -> {
                             httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
                             httpClientBuilder.setSSLContext(finalSslContext);
+                            httpClientBuilder.setMaxConnTotal(config.httpMaxConnTotal);
+                            httpClientBuilder.setMaxConnPerRoute(config.httpMaxConnPerRoute);
+                            if (config.httpIoThreads > 0) {
+                                httpClientBuilder.setDefaultIOReactorConfig(IOReactorConfig.custom()
+                                        .setIoThreadCount(config.httpIoThreads)
+                                        .build());
+                            }
+                            if (config.httpKeepAlive >= 0) {
+                                httpClientBuilder.setKeepAliveStrategy((response, context) -> config.httpKeepAlive);
+                            }
                             return httpClientBuilder;
                         }
                 )
+                .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                        .setConnectTimeout(config.httpConnectTimeout)
+                        .setSocketTimeout(config.httpSocketTimeout)
+                )
+                // gzip request bodies and accept gzip compressed responses
+                .setCompressionEnabled(config.compression)
                 .build();
 
         // Create the transport with a Jackson mapper
         ElasticsearchTransport transport = new RestClientTransport(
                 restClient, new JacksonJsonpMapper());
 
-        // And create the API client
+        // And create the API clients
         client = new ElasticsearchClient(transport);
+        asyncClient = new ElasticsearchAsyncClient(transport);
     }
 
     private static CredentialsProvider getCredentialsProvider(ElasticConfig config) {
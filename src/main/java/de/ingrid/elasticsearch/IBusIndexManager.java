@@ -24,13 +24,30 @@ package de.ingrid.elasticsearch;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.ingrid.utils.*;
 import de.ingrid.utils.query.IngridQuery;
+import jakarta.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
@@ -45,12 +62,52 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
 
     private static final Logger log = LogManager.getLogger(IBusIndexManager.class);
 
+    private interface IBusCall {
+        IngridDocument call(IBus iBus) throws Exception;
+    }
+
+    /**
+     * Limits the calls to one iBus. An iBus is regarded as stalled while a call which timed out is still
+     * running, so that the following calls are not queued behind it.
+     */
+    private static class IBusChannel {
+        private final Semaphore permits;
+        private final AtomicInteger stalledCalls = new AtomicInteger();
+
+        private IBusChannel(int maxConcurrentCalls) {
+            permits = new Semaphore(Math.max(1, maxConcurrentCalls));
+        }
+    }
+
     private List<IBus> iBusses;
 
     private final ElasticConfig config;
 
+    // counts the reads to distribute them over all iBusses
+    private final AtomicInteger nextReadIBus = new AtomicInteger();
+
+    // iBusses which failed to handle a batch call, but accepted the single calls
+    private final Set<IBus> iBussesWithoutBatchCalls = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+
+    private final Map<IBus, IBusChannel> iBusChannels = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    // calls are sent to all iBusses concurrently, the number of threads is limited by the channels of the iBusses
+    private final ExecutorService iBusExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ibus-call");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // reads are independent of the index calls, so that they are not delayed by them
+    private final ExecutorService readExecutor;
+
     public IBusIndexManager(ElasticConfig config) {
         this.config = config;
+        this.readExecutor = new ThreadPoolExecutor(0, Math.max(1, config.iBusReadThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "ibus-read");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
@@ -59,6 +116,58 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         iBusses = busClient.getNonCacheableIBusses();
     }
 
+    /**
+     * Stop the threads calling the iBusses. Calls sent afterwards fail.
+     */
+    @PreDestroy
+    public void shutdown() {
+        iBusExecutor.shutdownNow();
+        readExecutor.shutdownNow();
+    }
+
+    /**
+     * Start a call to an iBus in the background. The call fails immediately if the iBus is stalled or already
+     * handles the maximum number of calls, so that calls do not pile up for an iBus which does not answer.
+     */
+    private CompletableFuture<IngridDocument> submitCall(IBus ibus, IBusCall iBusCall) {
+        IBusChannel channel = iBusChannels.computeIfAbsent(ibus, bus -> new IBusChannel(config.iBusMaxConcurrentCalls));
+        CompletableFuture<IngridDocument> future = new CompletableFuture<>();
+        if (channel.stalledCalls.get() > 0) {
+            future.completeExceptionally(new RejectedExecutionException("iBus is stalled, a call which timed out is still running"));
+            return future;
+        }
+        if (!channel.permits.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many calls running on iBus"));
+            return future;
+        }
+
+        try {
+            iBusExecutor.execute(() -> {
+                try {
+                    future.complete(iBusCall.call( ibus ));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    channel.permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down already
+            channel.permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Mark the iBus as stalled until the call, which did not answer in time, has finished.
+     */
+    private void markStalled(IBus ibus, CompletableFuture<IngridDocument> future) {
+        IBusChannel channel = iBusChannels.get(ibus);
+        channel.stalledCalls.incrementAndGet();
+        future.whenComplete((response, ex) -> channel.stalledCalls.decrementAndGet());
+    }
+
     private List<IBus> getIBusses() {
         if (iBusses == null) {
             BusClient busClient = BusClientFactory.getBusClient();
@@ -77,7 +186,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         map.put( "partialName", partialName );
         call.setParameter( map );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return response != null ? response.getString("result") : null;
     }
 
@@ -180,25 +289,54 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
 
     @Override
     public void update(IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
+        sendCallToIBusses(prepareUpdateCall(indexinfo, doc, updateOldIndex));
+    }
+
+    public void update(int iBusIndex, IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
+        sendCallToIBus(iBusses.get(iBusIndex), prepareUpdateCall(indexinfo, doc, updateOldIndex));
+    }
+
+    private IngridCall prepareUpdateCall(IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
         IngridCall call = prepareCall( "update" );
         Map<String, Object> map = new HashMap<>();
         map.put( "indexinfo", indexinfo );
         map.put( "doc", doc );
         map.put( "updateOldIndex", updateOldIndex );
         call.setParameter( map );
+        return call;
+    }
 
-        sendCallToIBusses(call);
+    @Override
+    public void updateAll(IndexInfo indexinfo, Collection<ElasticDocument> docs, boolean updateOldIndex) {
+        IngridCall call = prepareCall( "updateAll" );
+        Map<String, Object> map = new HashMap<>();
+        map.put( "indexinfo", indexinfo );
+        map.put( "docs", new ArrayList<>( docs ) );
+        map.put( "updateOldIndex", updateOldIndex );
+        call.setParameter( map );
+
+        List<IngridCall> singleCalls = new ArrayList<>();
+        docs.forEach(doc -> singleCalls.add(prepareUpdateCall(indexinfo, doc, updateOldIndex)));
+
+        sendCallToIBusses(call.getMethod(), ibus -> sendBatchCall(ibus, call, singleCalls));
     }
 
-    public void update(int iBusIndex, IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
-        IngridCall call = prepareCall( "update" );
+    public void updateAll(int iBusIndex, IndexInfo indexinfo, Collection<ElasticDocument> docs, boolean updateOldIndex) {
+        IngridCall call = prepareCall( "updateAll" );
         Map<String, Object> map = new HashMap<>();
         map.put( "indexinfo", indexinfo );
-        map.put( "doc", doc );
+        map.put( "docs", new ArrayList<>( docs ) );
         map.put( "updateOldIndex", updateOldIndex );
         call.setParameter( map );
 
-        sendCallToIBus(iBusses.get(iBusIndex), call);
+        List<IngridCall> singleCalls = new ArrayList<>();
+        docs.forEach(doc -> singleCalls.add(prepareUpdateCall(indexinfo, doc, updateOldIndex)));
+
+        try {
+            sendBatchCall(iBusses.get(iBusIndex), call, singleCalls);
+        } catch (Exception e) {
+            log.error( "Error relaying index message: " + call.getMethod(), e );
+        }
     }
 
     @Override
@@ -250,7 +388,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         IngridCall call = prepareCall( "getIndices" );
         call.setParameter( filter );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (String[]) response.get( "result" );
     }
 
@@ -268,7 +406,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         IngridCall call = prepareCall( "getMapping" );
         call.setParameter( indexInfo );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (Map<String, Object>) response.get( "result" );
     }
 
@@ -308,33 +446,62 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
 
 	@Override
 	public void delete(IndexInfo indexinfo, String id, boolean updateOldIndex) {
+        sendCallToIBusses(prepareDeleteCall(indexinfo, id, updateOldIndex));
+	}
+
+	public void delete(int iBusIndex, IndexInfo indexinfo, String id, boolean updateOldIndex) {
+        sendCallToIBus(iBusses.get(iBusIndex), prepareDeleteCall(indexinfo, id, updateOldIndex));
+	}
+
+    private IngridCall prepareDeleteCall(IndexInfo indexinfo, String id, boolean updateOldIndex) {
         IngridCall call = prepareCall( "deleteDocById" );
         Map<String, Object> map = new HashMap<>();
         map.put( "indexinfo", indexinfo );
         map.put( "id", id );
         map.put( "updateOldIndex", updateOldIndex );
         call.setParameter( map );
+        return call;
+    }
 
-        sendCallToIBusses(call);
-	}
+    @Override
+    public void deleteAll(IndexInfo indexinfo, Collection<String> ids, boolean updateOldIndex) {
+        IngridCall call = prepareCall( "deleteAll" );
+        Map<String, Object> map = new HashMap<>();
+        map.put( "indexinfo", indexinfo );
+        map.put( "ids", new ArrayList<>( ids ) );
+        map.put( "updateOldIndex", updateOldIndex );
+        call.setParameter( map );
 
-	public void delete(int iBusIndex, IndexInfo indexinfo, String id, boolean updateOldIndex) {
-        IngridCall call = prepareCall( "deleteDocById" );
+        List<IngridCall> singleCalls = new ArrayList<>();
+        ids.forEach(id -> singleCalls.add(prepareDeleteCall(indexinfo, id, updateOldIndex)));
+
+        sendCallToIBusses(call.getMethod(), ibus -> sendBatchCall(ibus, call, singleCalls));
+    }
+
+    public void deleteAll(int iBusIndex, IndexInfo indexinfo, Collection<String> ids, boolean updateOldIndex) {
+        IngridCall call = prepareCall( "deleteAll" );
         Map<String, Object> map = new HashMap<>();
         map.put( "indexinfo", indexinfo );
-        map.put( "id", id );
+        map.put( "ids", new ArrayList<>( ids ) );
         map.put( "updateOldIndex", updateOldIndex );
         call.setParameter( map );
 
-        sendCallToIBus(iBusses.get(iBusIndex), call);
-	}
+        List<IngridCall> singleCalls = new ArrayList<>();
+        ids.forEach(id -> singleCalls.add(prepareDeleteCall(indexinfo, id, updateOldIndex)));
+
+        try {
+            sendBatchCall(iBusses.get(iBusIndex), call, singleCalls);
+        } catch (Exception e) {
+            log.error( "Error relaying index message: " + call.getMethod(), e );
+        }
+    }
 
     @Override
     public boolean indexExists(String indexName) {
         IngridCall call = prepareCall( "indexExists" );
         call.setParameter(indexName);
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (boolean) response.get( "result" );
     }
 
@@ -355,7 +522,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         map.put( "length", length );
         call.setParameter( map );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (IngridHits) response.get( "result" );
     }
 
@@ -368,7 +535,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         map.put( "fields", fields );
         call.setParameter( map );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (IngridHitDetail) response.get( "result" );
     }
 
@@ -381,27 +548,155 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         map.put( "fields", fields );
         call.setParameter( map );
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (IngridHitDetail[]) response.get( "result" );
     }
 
+    /**
+     * Send a call to all iBusses concurrently and wait until all of them answered or the configured timeout
+     * passed. Waiting for all iBusses keeps the order of consecutive calls of a caller. An iBus which did not
+     * answer in time gets no further calls until the call has finished, instead of receiving them out of order.
+     *
+     * @return the response of the first iBus in the list, which answered successfully
+     */
     private IngridDocument sendCallToIBusses(IngridCall call) {
+        return sendCallToIBusses(call.getMethod(), ibus -> ibus.call( call ));
+    }
 
+    /**
+     * Same as {@link #sendCallToIBusses(IngridCall)}, but each iBus is called by the given function.
+     *
+     * @param method is the name of the call used for logging
+     */
+    private IngridDocument sendCallToIBusses(String method, IBusCall iBusCall) {
+
+        List<IBus> busses = getIBusses();
+        List<CompletableFuture<IngridDocument>> responses = new ArrayList<>();
+        for ( IBus ibus : busses) {
+            responses.add(submitCall(ibus, iBusCall));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.iBusCallTimeout);
         IngridDocument response = null;
-        for ( IBus ibus : getIBusses()) {
+        int successes = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            CompletableFuture<IngridDocument> future = responses.get(i);
             try {
-                IngridDocument currentResponse = ibus.call( call );
+                IngridDocument currentResponse = config.iBusCallTimeout > 0
+                        ? future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                        : future.get();
+                successes++;
                 if (response == null) {
                     response = currentResponse;
                 }
-            } catch (Exception e) {
-                log.error( "Error relaying index message: " + call.getMethod(), e );
+            } catch (TimeoutException e) {
+                // not cancelled, since the call might be processed by the iBus already
+                markStalled(busses.get(i), future);
+                log.error( "Timeout relaying index message: " + method );
+            } catch (ExecutionException e) {
+                log.error( "Error relaying index message: " + method, e.getCause() );
+            } catch (InterruptedException e) {
+                markStalled(busses.get(i), future);
+                Thread.currentThread().interrupt();
+                log.error( "Interrupted relaying index message: " + method );
             }
         }
+
+        if (successes < config.iBusQuorum) {
+            throw new RuntimeException("Index message " + method + " was only relayed successfully to " + successes + " of " + busses.size() + " iBusses");
+        }
         return response;
 
     }
 
+    /**
+     * Send a call, which does not change anything, to only one iBus. If it fails or does not answer in time,
+     * the call is sent to the next iBus. The first iBus is selected by the configured read policy. Without a
+     * timeout the iBus is called by the calling thread, otherwise by a thread of the bounded read pool.
+     *
+     * @return the response or null if no iBus answered successfully
+     */
+    private IngridDocument sendReadCallToIBusses(IngridCall call) {
+
+        List<IBus> busses = getIBusses();
+        if (busses.isEmpty()) {
+            return null;
+        }
+        int first = "roundRobin".equalsIgnoreCase(config.iBusReadPolicy)
+                ? Math.floorMod(nextReadIBus.getAndIncrement(), busses.size())
+                : 0;
+
+        for (int i = 0; i < busses.size(); i++) {
+            IBus ibus = busses.get((first + i) % busses.size());
+            if (config.iBusCallTimeout <= 0) {
+                try {
+                    IngridDocument response = ibus.call( call );
+                    if (response != null) {
+                        return response;
+                    }
+                } catch (Exception e) {
+                    log.warn( "Error relaying index message: " + call.getMethod() + ", trying next iBus", e );
+                }
+                continue;
+            }
+
+            Future<IngridDocument> future;
+            try {
+                future = readExecutor.submit(() -> ibus.call( call ));
+            } catch (RejectedExecutionException e) {
+                log.error( "Too many reads running, not relaying index message: " + call.getMethod() );
+                return null;
+            }
+            try {
+                IngridDocument response = future.get(config.iBusCallTimeout, TimeUnit.MILLISECONDS);
+                if (response != null) {
+                    return response;
+                }
+            } catch (TimeoutException e) {
+                // reads can be aborted without harm
+                future.cancel(true);
+                log.warn( "Timeout relaying index message: " + call.getMethod() + ", trying next iBus" );
+            } catch (ExecutionException e) {
+                log.warn( "Error relaying index message: " + call.getMethod() + ", trying next iBus", e.getCause() );
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                log.error( "Interrupted relaying index message: " + call.getMethod() );
+                return null;
+            }
+        }
+
+        log.error( "Error relaying index message: " + call.getMethod() + ", no iBus answered" );
+        return null;
+
+    }
+
+    /**
+     * Send a call with several documents to an iBus. iBusses which do not know the batch call, like versions
+     * before it was introduced, get one call per document instead and are remembered, so that following batches
+     * are sent to them one by one directly.
+     */
+    private IngridDocument sendBatchCall(IBus iBus, IngridCall batchCall, List<IngridCall> singleCalls) throws Exception {
+        boolean batchFailed = false;
+        if (!iBussesWithoutBatchCalls.contains(iBus)) {
+            try {
+                return iBus.call( batchCall );
+            } catch (Exception e) {
+                log.warn( "iBus could not handle index message: " + batchCall.getMethod() + ", sending one message per document", e );
+                batchFailed = true;
+            }
+        }
+
+        IngridDocument response = null;
+        for (IngridCall singleCall : singleCalls) {
+            response = iBus.call( singleCall );
+        }
+        if (batchFailed) {
+            iBussesWithoutBatchCalls.add(iBus);
+        }
+        return response;
+    }
+
     private IngridDocument sendCallToIBus(IBus iBus, IngridCall call) {
 
         try {
@@ -430,7 +725,7 @@ public class IBusIndexManager implements IConfigurable, IIndexManager {
         IngridCall call = prepareCall( "getDocById" );
         call.setParameter(hit);
 
-        IngridDocument response = sendCallToIBusses(call);
+        IngridDocument response = sendReadCallToIBusses(call);
         return (ElasticDocument) response.get( "result" );
     }
 }
@@ -23,6 +23,7 @@
 package de.ingrid.elasticsearch;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
@@ -46,6 +47,15 @@ public interface IIndexManager {
 
     void update(IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex);
 
+    /**
+     * Insert or update several documents of the same index, by default one by one.
+     */
+    default void updateAll(IndexInfo indexinfo, Collection<ElasticDocument> docs, boolean updateOldIndex) {
+        for (ElasticDocument doc : docs) {
+            update(indexinfo, doc, updateOldIndex);
+        }
+    }
+
     void updatePlugDescription(PlugDescription plugDescription) throws IOException;
 
     void updateIPlugInformation(String id, JSONObject info) throws InterruptedException, ExecutionException;
@@ -66,5 +76,14 @@ public interface IIndexManager {
 
     void delete(IndexInfo indexinfo, String id, boolean updateOldIndex);
 
+    /**
+     * Delete several documents of the same index, by default one by one.
+     */
+    default void deleteAll(IndexInfo indexinfo, Collection<String> ids, boolean updateOldIndex) {
+        for (String id : ids) {
+            delete(indexinfo, id, updateOldIndex);
+        }
+    }
+
     boolean indexExists(String indexName);
 }
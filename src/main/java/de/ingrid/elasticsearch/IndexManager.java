@@ -22,11 +22,17 @@
  */
 package de.ingrid.elasticsearch;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.elasticsearch._helpers.bulk.BulkIngester;
 import co.elastic.clients.elasticsearch._helpers.bulk.BulkListener;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.Refresh;
+import co.elastic.clients.elasticsearch._types.Slices;
+import co.elastic.clients.elasticsearch._types.SlicesCalculation;
 import co.elastic.clients.elasticsearch._types.SortOptions;
 import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.IdsQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders;
@@ -34,18 +40,22 @@ import co.elastic.clients.elasticsearch._types.query_dsl.TermQuery;
 import co.elastic.clients.elasticsearch.cat.indices.IndicesRecord;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
-import co.elastic.clients.elasticsearch.core.IndexRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
 import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
 import co.elastic.clients.elasticsearch.core.bulk.DeleteOperation;
 import co.elastic.clients.elasticsearch.core.bulk.IndexOperation;
+import co.elastic.clients.elasticsearch.core.bulk.OperationType;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
 import co.elastic.clients.elasticsearch.core.search.Hit;
 import co.elastic.clients.elasticsearch.core.search.HitsMetadata;
 import co.elastic.clients.elasticsearch.indices.CreateIndexRequest;
 import co.elastic.clients.elasticsearch.indices.DeleteIndexRequest;
 import co.elastic.clients.elasticsearch.indices.get_alias.IndexAliases;
 import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.elasticsearch.indices.update_aliases.Action;
 import co.elastic.clients.json.JsonData;
 import de.ingrid.utils.ElasticDocument;
 import de.ingrid.utils.IngridDocument;
@@ -53,9 +63,13 @@ import de.ingrid.utils.IngridHit;
 import de.ingrid.utils.PlugDescription;
 import de.ingrid.utils.xml.XMLSerializer;
 import jakarta.annotation.PostConstruct;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.client.Request;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -64,11 +78,27 @@ import org.springframework.stereotype.Service;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
@@ -80,18 +110,90 @@ import java.util.stream.Collectors;
 public class IndexManager implements IIndexManager {
     private static final Logger log = LogManager.getLogger(IndexManager.class);
 
+    private static class WrittenHeartbeat {
+        private final String contentHash;
+        // the time the volatile fields were written in nanoseconds
+        private final long volatileWriteTime;
+
+        private WrittenHeartbeat(String contentHash, long volatileWriteTime) {
+            this.contentHash = contentHash;
+            this.volatileWriteTime = volatileWriteTime;
+        }
+    }
+
+    private static final long REINDEX_POLL_INTERVAL = 2000;
+
+    // settings changed for a fast initial load of a new index
+    private static final String[] BULK_BUILD_SETTINGS = {"refresh_interval", "number_of_replicas", "translog.durability"};
+
+    private static final String BULK_BUILD_PROFILE = "{\"index\": {\"refresh_interval\": \"-1\", \"number_of_replicas\": 0, \"translog.durability\": \"async\"}}";
+
+    private static final int IPLUG_DOC_IDS_PAGE_SIZE = 1000;
+
+    // key in the _meta of the mapping, which holds the settings to be restored after a bulk build
+    private static final String PRODUCTION_SETTINGS_META = "ingrid_production_settings";
+
     private final ElasticsearchNodeFactoryBean elastic;
     private final ElasticConfig _config;
 
     private ElasticsearchClient _client;
 
-    private BulkIngester<String> _bulkProcessor;
+    private BulkIngester<BulkItemContext> _bulkProcessor;
+
+    private final MetadataCache metadataCache;
+
+    private final AtomicLong indexGeneration = new AtomicLong();
+
+    // the document in ingrid_meta of each iPlug ID, outdated entries are corrected when writing to them fails
+    private final Map<String, String> iPlugDocIds = new ConcurrentHashMap<>();
+
+    // what was written last for each iPlug ID, to skip heartbeats without changes
+    private final Map<String, WrittenHeartbeat> writtenHeartbeats = new ConcurrentHashMap<>();
+
+    // striped by the iPlug ID, so that the information of one iPlug is not updated concurrently
+    private final ReentrantLock[] iPlugInformationLocks = new ReentrantLock[32];
+
+    // running index rebuilds by alias name
+    private final Map<String, ReindexSession> reindexSessions = new ConcurrentHashMap<>();
+
+    // only set if the bulk size shall be adapted to the cluster load
+    private AdaptiveBulkSizing bulkSizing;
+
+    private final AtomicInteger pendingBulkOperations = new AtomicInteger();
+
+    private final Map<Long, Long> bulkStartTimes = new ConcurrentHashMap<>();
+
+    // set while the current thread flushes with a permit of bulkSizing, which is handed over to the sent bulk
+    private final ThreadLocal<Boolean> heldBulkPermit = new ThreadLocal<>();
+
+    // bulks which were sent with a permit of bulkSizing, which has to be released when they are answered
+    private final Set<Long> permittedBulks = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService retryScheduler;
+
+    // operations waiting for their next attempt, key identity is sufficient since operations are never copied
+    private final Map<BulkOperation, BulkItemContext> scheduledRetries = new ConcurrentHashMap<>();
+
+    // sequence of the last operation added for each document which is not answered yet, so that a retry does
+    // not overwrite a newer write of the same document
+    private final Map<String, Long> latestWrites = new ConcurrentHashMap<>();
+
+    // only set if a dead letter file is configured
+    private DeadLetterSpool deadLetterSpool;
+
+    // operations added to the bulk processor which did not get their final answer yet, including pending retries
+    private final AtomicLong unfinishedOperations = new AtomicLong();
+
+    private final Object unfinishedOperationsMonitor = new Object();
 
     @Autowired
     public IndexManager(ElasticsearchNodeFactoryBean elastic, ElasticConfig config) {
         this.elastic = elastic;
         _config = config;
-
+        metadataCache = new MetadataCache(config.metadataCacheTtl);
+        for (int i = 0; i < iPlugInformationLocks.length; i++) {
+            iPlugInformationLocks[i] = new ReentrantLock();
+        }
     }
 
     @PostConstruct
@@ -100,12 +202,31 @@ public class IndexManager implements IIndexManager {
         if (_config.esCommunicationThroughIBus) return;
 
         _client = elastic.getClient();
+
+        // in adaptive mode the configured maximums are only upper bounds, the actual size is controlled by bulkSizing
+        bulkSizing = _config.bulkAdaptive ? new AdaptiveBulkSizing(_config) : null;
+        int maxOperations = _config.bulkAdaptive ? _config.bulkAdaptiveMaxOperations : _config.bulkMaxOperations;
+        int maxConcurrentRequests = _config.bulkAdaptive ? _config.bulkAdaptiveMaxConcurrentRequests : _config.bulkMaxConcurrentRequests;
+
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (_config.bulkDeadLetterFile != null && !_config.bulkDeadLetterFile.isEmpty()) {
+            deadLetterSpool = new DeadLetterSpool(Paths.get(_config.bulkDeadLetterFile), _client._jsonpMapper());
+        }
+
         _bulkProcessor = BulkIngester.of(bi -> bi
                 .client(_client)
                 .listener(getBulkProcessorListener())
-                .flushInterval(5L, TimeUnit.SECONDS)
-
+                .maxOperations(maxOperations)
+                .maxSize(_config.bulkMaxSize)
+                .maxConcurrentRequests(maxConcurrentRequests)
+                .flushInterval(_config.bulkFlushInterval, TimeUnit.SECONDS)
         );
+
+        loadIPlugDocIds();
 //        log.info("Elastic Search Settings: {}", printSettings());
     }
 
@@ -118,26 +239,37 @@ public class IndexManager implements IIndexManager {
      * @param updateOldIndex if true, it'll be checked if the current index differs from the real index, which is used during reindexing
      */
     public void update(IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
+        updateAll(indexinfo, Collections.singletonList(doc), updateOldIndex);
+    }
+
+    /**
+     * Insert or update several documents of the same index. The check for a running reindexing is only done once for all documents.
+     *
+     * @param indexinfo      contains information about the index to be used besided other information
+     * @param docs           are the documents to be indexed
+     * @param updateOldIndex if true, it'll be checked if the current index differs from the real index, which is used during reindexing
+     */
+    public void updateAll(IndexInfo indexinfo, Collection<ElasticDocument> docs, boolean updateOldIndex) {
+        String oldIndex = updateOldIndex ? getOldIndex(indexinfo, true) : null;
+
+        for (ElasticDocument doc : docs) {
+            addToBulk(createIndexOperation(indexinfo, indexinfo.getRealIndexName(), doc));
+            if (oldIndex != null) {
+                addToBulk(createIndexOperation(indexinfo, oldIndex, doc));
+            }
+        }
+    }
+
+    private BulkOperation createIndexOperation(IndexInfo indexinfo, String index, ElasticDocument doc) {
         IndexOperation.Builder<ElasticDocument> updateOperation = new IndexOperation.Builder<ElasticDocument>()
-                .index(indexinfo.getRealIndexName())
+                .index(index)
                 .document(doc);
 
         if (!_config.indexWithAutoId) {
             updateOperation.id((String) doc.get(indexinfo.getDocIdField()));
         }
 
-        _bulkProcessor.add(BulkOperation.of(b -> b.index(updateOperation.build())));
-
-        if (updateOldIndex) {
-            String oldIndex = getIndexNameFromAliasName(indexinfo.getToAlias(), null);
-            // if the current index differs from the real index, then it means there's an indexing going on
-            // and if the real index name is the same as the index alias, it means that no complete indexing happened yet
-            if ((oldIndex != null) && !oldIndex.equals(indexinfo.getRealIndexName()) && (!indexinfo.getToIndex().equals(indexinfo.getRealIndexName()))) {
-                IndexInfo otherIndexInfo = indexinfo.clone();
-                otherIndexInfo.setRealIndexName(oldIndex);
-                update(otherIndexInfo, doc, false);
-            }
-        }
+        return BulkOperation.of(b -> b.index(updateOperation.build()));
     }
 
     /**
@@ -148,51 +280,448 @@ public class IndexManager implements IIndexManager {
      * @param updateOldIndex if true then also remove document from previous index in case we're indexing right now
      */
     public void delete(IndexInfo indexinfo, String id, boolean updateOldIndex) {
+        deleteAll(indexinfo, Collections.singletonList(id), updateOldIndex);
+    }
 
-        _bulkProcessor.add(BulkOperation.of(bulk -> bulk
-                .delete(DeleteOperation.of(x -> x.index(indexinfo.getRealIndexName()).id(id))))
-        );
+    /**
+     * Delete several documents of the same index. The check for a running reindexing is only done once for all documents.
+     *
+     * @param indexinfo      describes the index to be used
+     * @param ids            are the IDs of the documents to be deleted
+     * @param updateOldIndex if true then also remove documents from previous index in case we're indexing right now
+     */
+    public void deleteAll(IndexInfo indexinfo, Collection<String> ids, boolean updateOldIndex) {
+        String oldIndex = updateOldIndex ? getOldIndex(indexinfo, false) : null;
+
+        for (String id : ids) {
+            addToBulk(createDeleteOperation(indexinfo.getRealIndexName(), id));
+            if (oldIndex != null) {
+                addToBulk(createDeleteOperation(oldIndex, id));
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #update(IndexInfo, ElasticDocument, boolean)}, but the result can be awaited.
+     *
+     * @return a future, which is completed with the answer of the cluster for the document, after the document was
+     * also written to the old index if necessary
+     */
+    public CompletableFuture<BulkResponseItem> updateAsync(IndexInfo indexinfo, ElasticDocument doc, boolean updateOldIndex) {
+        String oldIndex = updateOldIndex ? getOldIndex(indexinfo, true) : null;
+
+        CompletableFuture<BulkResponseItem> result = addToBulkTracked(createIndexOperation(indexinfo, indexinfo.getRealIndexName(), doc));
+        if (oldIndex != null) {
+            result = result.thenCombine(addToBulkTracked(createIndexOperation(indexinfo, oldIndex, doc)), (item, oldIndexItem) -> item);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #delete(IndexInfo, String, boolean)}, but the result can be awaited.
+     *
+     * @return a future, which is completed with the answer of the cluster for the deletion, after the document was
+     * also removed from the old index if necessary
+     */
+    public CompletableFuture<BulkResponseItem> deleteAsync(IndexInfo indexinfo, String id, boolean updateOldIndex) {
+        String oldIndex = updateOldIndex ? getOldIndex(indexinfo, false) : null;
+
+        CompletableFuture<BulkResponseItem> result = addToBulkTracked(createDeleteOperation(indexinfo.getRealIndexName(), id));
+        if (oldIndex != null) {
+            result = result.thenCombine(addToBulkTracked(createDeleteOperation(oldIndex, id)), (item, oldIndexItem) -> item);
+        }
+        return result;
+    }
+
+    private BulkOperation createDeleteOperation(String index, String id) {
+        return BulkOperation.of(bulk -> bulk
+                .delete(DeleteOperation.of(x -> x.index(index).id(id))));
+    }
+
+    /**
+     * Get the index which the alias still points to while the index of indexinfo is being rebuilt. The first write
+     * into a new index opens a reindex session, so that further writes do not need to look up the alias again.
+     *
+     * @param indexinfo  describes the index written to
+     * @param forUpdate  if true, no old index is returned if the real index name is the index name itself
+     * @return the old index or null if no rebuild is going on
+     */
+    private String getOldIndex(IndexInfo indexinfo, boolean forUpdate) {
+        String realIndexName = indexinfo.getRealIndexName();
+        ReindexSession session = reindexSessions.get(indexinfo.getToAlias());
+        if (session != null && session.isFor(realIndexName)) {
+            if (isCurrentAliasTarget(session)) {
+                return session.getOldIndex();
+            }
+            // the alias was changed elsewhere, writing to the former index would keep it alive or even recreate it
+            if (reindexSessions.remove(indexinfo.getToAlias(), session)) {
+                log.info("Closed outdated reindex session: " + session);
+            }
+        }
+
+        String oldIndex = getIndexNameFromAliasName(indexinfo.getToAlias(), null);
+        // if the current index differs from the real index, then it means there's an indexing going on
+        if (oldIndex == null || oldIndex.equals(realIndexName)) {
+            return null;
+        }
+        // and if the real index name is the same as the index alias, it means that no complete indexing happened yet
+        if (indexinfo.getToIndex().equals(realIndexName)) {
+            return forUpdate ? null : oldIndex;
+        }
+
+        reindexSessions.put(indexinfo.getToAlias(), new ReindexSession(indexinfo.getToAlias(), oldIndex, realIndexName));
+        return oldIndex;
+    }
+
+    /**
+     * @return true if the alias of the session still points to the old index of the session
+     */
+    private boolean isCurrentAliasTarget(ReindexSession session) {
+        String oldIndex = session.getOldIndex();
+        List<String> aliasIndices = metadataCache.getAliasIndices(session.getAliasName(), this::loadAliasIndices);
+        if (oldIndex == null) {
+            return aliasIndices.isEmpty();
+        }
+        if (aliasIndices.isEmpty() && oldIndex.equals(session.getAliasName())) {
+            // alias seems to be the index itself
+            return indexExists(oldIndex);
+        }
+        return aliasIndices.contains(oldIndex);
+    }
+
+    /**
+     * Start the rebuild of an index, e.g. after creating it with a name from {@link #getNextIndexName(String, String, String)}.
+     * Until the alias is switched to the new index, all writes to the new index are also sent to the index the alias
+     * currently points to, without looking up the alias for every write.
+     *
+     * @param aliasName is the alias which will be switched to the new index
+     * @param newIndex  is the index to be filled
+     * @return the opened session
+     */
+    public ReindexSession openReindexSession(String aliasName, String newIndex) {
+        String oldIndex = getIndexNameFromAliasName(aliasName, null);
+        ReindexSession session = new ReindexSession(aliasName, newIndex.equals(oldIndex) ? null : oldIndex, newIndex);
+        reindexSessions.put(aliasName, session);
+        log.info("Opened reindex session: " + session);
+        return session;
+    }
+
+    public ReindexSession getReindexSession(String aliasName) {
+        return reindexSessions.get(aliasName);
+    }
+
+    public void closeReindexSession(String aliasName) {
+        ReindexSession session = reindexSessions.remove(aliasName);
+        if (session != null) {
+            log.info("Closed reindex session: " + session);
+        }
+    }
+
+    /**
+     * Add an operation to the bulk processor. In adaptive mode the bulk is sent as soon as the
+     * currently allowed number of operations is reached.
+     */
+    private void addToBulk(BulkOperation operation) {
+        addToBulk(operation, new BulkItemContext());
+    }
+
+    private CompletableFuture<BulkResponseItem> addToBulkTracked(BulkOperation operation) {
+        CompletableFuture<BulkResponseItem> future = new CompletableFuture<>();
+        addToBulk(operation, new BulkItemContext(future));
+        return future;
+    }
+
+    private void addToBulk(BulkOperation operation, BulkItemContext context) {
+        // retries are still counted from their first attempt
+        if (context.getAttempt() == 0) {
+            unfinishedOperations.incrementAndGet();
+            String documentKey = getDocumentKey(operation);
+            if (documentKey != null) {
+                latestWrites.merge(documentKey, context.getSequence(), Math::max);
+            }
+        }
+        try {
+            _bulkProcessor.add(operation, context);
+        } catch (RuntimeException e) {
+            if (context.getAttempt() == 0) finishOperation(operation, context, null, e);
+            throw e;
+        }
+
+        if (bulkSizing != null && pendingBulkOperations.incrementAndGet() >= bulkSizing.getMaxOperations()) {
+            flushWithPermit();
+        }
+    }
 
-        if (updateOldIndex) {
-            String oldIndex = getIndexNameFromAliasName(indexinfo.getToAlias(), null);
-            if (oldIndex != null && !oldIndex.equals(indexinfo.getRealIndexName())) {
-                IndexInfo otherIndexInfo = indexinfo.clone();
-                otherIndexInfo.setRealIndexName(oldIndex);
-                delete(otherIndexInfo, id, false);
+    /**
+     * Send the queued operations as soon as the adaptive sizing allows another concurrent bulk request. The
+     * permit is taken here and not in the bulk listener, since the listener is called while the bulk ingester
+     * holds its lock, which is also needed to process the responses that release the permits.
+     */
+    private void flushWithPermit() {
+        try {
+            bulkSizing.acquire();
+        } catch (InterruptedException e) {
+            // the operations are sent later by the bulk ingester itself
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        heldBulkPermit.set(Boolean.TRUE);
+        try {
+            _bulkProcessor.flush();
+        } finally {
+            // the permit was not handed over, if there was nothing to send
+            if (heldBulkPermit.get() != null) {
+                heldBulkPermit.remove();
+                bulkSizing.release();
             }
         }
     }
 
-    private BulkListener<String> getBulkProcessorListener() {
+    private BulkListener<BulkItemContext> getBulkProcessorListener() {
         return new BulkListener<>() {
 
             @Override
-            public void beforeBulk(long executionId, BulkRequest request, List<String> contexts) {
+            public void beforeBulk(long executionId, BulkRequest request, List<BulkItemContext> contexts) {
+                if (bulkSizing != null) {
+                    int sentOperations = request.operations().size();
+                    pendingBulkOperations.updateAndGet(count -> Math.max(0, count - sentOperations));
+                    // must not block here, bulks sent without permit are still limited by the bulk ingester
+                    if (heldBulkPermit.get() != null) {
+                        heldBulkPermit.remove();
+                        permittedBulks.add(executionId);
+                    }
+                }
+                bulkStartTimes.put(executionId, System.nanoTime());
             }
 
             @Override
-            public void afterBulk(long executionId, BulkRequest request, List<String> contexts, BulkResponse response) {
+            public void afterBulk(long executionId, BulkRequest request, List<BulkItemContext> contexts, BulkResponse response) {
+                boolean rejected = false;
+                List<BulkOperation> deadLetters = new ArrayList<>();
+
                 // The request was accepted, but may contain failed items.
-                // The "context" list gives the file name for each bulk item.
                 for (int i = 0; i < contexts.size(); i++) {
                     BulkResponseItem item = response.items().get(i);
+                    BulkItemContext context = contexts.get(i);
                     if (item.error() != null) {
-                        // Inspect the failure cause
-                        log.error("Failed to index file " + contexts.get(i) + " - " + item.error().reason());
+                        if (item.status() == 429) rejected = true;
+
+                        BulkOperation operation = request.operations().get(i);
+                        if (isRetryable(item) && !isSuperseded(operation, context)) {
+                            if (scheduleRetry(operation, context, item)) continue;
+
+                            log.error("Failed to index document " + item.id() + " in " + item.index() + " after all retries - " + item.error().reason());
+                            deadLetters.add(operation);
+                        } else {
+                            // Inspect the failure cause
+                            log.error("Failed to index document " + item.id() + " in " + item.index() + " - " + item.error().reason());
+                        }
                     }
+                    finishOperation(request.operations().get(i), context, item, null);
+                }
+                writeDeadLetters(deadLetters);
+                indexGeneration.incrementAndGet();
+
+                long latency = getBulkLatency(executionId);
+                if (bulkSizing != null) {
+                    bulkSizing.onBulkCompleted(latency, rejected);
+                    if (permittedBulks.remove(executionId)) bulkSizing.release();
                 }
             }
 
             @Override
-            public void afterBulk(long executionId, BulkRequest request, List<String> contexts, Throwable failure) {
+            public void afterBulk(long executionId, BulkRequest request, List<BulkItemContext> contexts, Throwable failure) {
                 // The request could not be sent
                 log.error("Bulk request " + executionId + " failed", failure);
+
+                List<BulkOperation> deadLetters = new ArrayList<>();
+                for (int i = 0; i < request.operations().size(); i++) {
+                    BulkOperation operation = request.operations().get(i);
+                    BulkItemContext context = i < contexts.size() ? contexts.get(i) : null;
+                    if (isSuperseded(operation, context)) {
+                        finishOperation(operation, context, null, failure);
+                    } else if (!scheduleRetry(operation, context, null)) {
+                        deadLetters.add(operation);
+                        finishOperation(operation, context, null, failure);
+                    }
+                }
+                writeDeadLetters(deadLetters);
+                // the request might have been processed partially
+                indexGeneration.incrementAndGet();
+
+                getBulkLatency(executionId);
+                if (bulkSizing != null) {
+                    bulkSizing.onBulkFailed();
+                    if (permittedBulks.remove(executionId)) bulkSizing.release();
+                }
             }
         };
     }
 
+    /**
+     * Mark an operation as finally answered, so that it does not need to be waited for anymore.
+     */
+    private void finishOperation(BulkOperation operation, BulkItemContext context, BulkResponseItem item, Throwable failure) {
+        if (context != null) {
+            if (failure == null) context.complete(item);
+            else context.fail(failure);
+
+            String documentKey = getDocumentKey(operation);
+            if (documentKey != null) {
+                latestWrites.remove(documentKey, context.getSequence());
+            }
+        }
+        if (unfinishedOperations.decrementAndGet() <= 0) {
+            synchronized (unfinishedOperationsMonitor) {
+                unfinishedOperationsMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Overloaded or temporarily unavailable nodes and timeouts are worth another try, all other errors
+     * like mapping problems would fail again.
+     */
+    private boolean isRetryable(BulkResponseItem item) {
+        int status = item.status();
+        if (status == 408 || status == 429 || status == 502 || status == 503 || status == 504) {
+            return true;
+        }
+        String type = item.error().type();
+        return type != null && type.contains("timeout");
+    }
+
+    /**
+     * Add the operation to the bulk processor again after an exponential backoff with jitter. The operation is
+     * not sent again, if the same document was written again in the meantime, since the retry would overwrite
+     * the newer write.
+     *
+     * @param lastItem is the answer of the failed attempt, if the request was sent at all
+     * @return false if the operation has been retried too often already
+     */
+    private boolean scheduleRetry(BulkOperation operation, BulkItemContext context, BulkResponseItem lastItem) {
+        BulkItemContext nextContext = (context == null ? new BulkItemContext() : context).nextAttempt();
+        if (nextContext.getAttempt() > _config.bulkRetryMaxAttempts || retryScheduler.isShutdown()) {
+            return false;
+        }
+
+        scheduledRetries.put(operation, nextContext);
+        retryScheduler.schedule(() -> {
+            if (scheduledRetries.remove(operation) == null) return;
+            if (isSuperseded(operation, nextContext)) {
+                log.debug("Skipping retry of a bulk operation, since its document was written again");
+                finishOperation(operation, nextContext, lastItem, lastItem == null ? new IllegalStateException("Not retried, since the document was written again") : null);
+                return;
+            }
+            try {
+                addToBulk(operation, nextContext);
+            } catch (RuntimeException e) {
+                // e.g. bulk processor has been closed in the meantime
+                writeDeadLetters(Collections.singletonList(operation));
+                finishOperation(operation, nextContext, null, e);
+            }
+        }, getRetryDelay(nextContext.getAttempt()), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return true if a newer operation for the same document has been added after the given one
+     */
+    private boolean isSuperseded(BulkOperation operation, BulkItemContext context) {
+        String documentKey = getDocumentKey(operation);
+        if (documentKey == null || context == null) return false;
+
+        Long latest = latestWrites.get(documentKey);
+        return latest != null && latest > context.getSequence();
+    }
+
+    /**
+     * @return index and ID of the document written by the operation or null if the ID is generated by the cluster
+     */
+    private String getDocumentKey(BulkOperation operation) {
+        String index;
+        String id;
+        if (operation.isIndex()) {
+            index = operation.index().index();
+            id = operation.index().id();
+        } else if (operation.isCreate()) {
+            index = operation.create().index();
+            id = operation.create().id();
+        } else if (operation.isUpdate()) {
+            index = operation.update().index();
+            id = operation.update().id();
+        } else if (operation.isDelete()) {
+            index = operation.delete().index();
+            id = operation.delete().id();
+        } else {
+            return null;
+        }
+        return id == null ? null : index + "/" + id;
+    }
+
+    private long getRetryDelay(int attempt) {
+        long delay = Math.min(_config.bulkRetryMaxDelay, _config.bulkRetryInitialDelay << Math.min(attempt - 1, 20));
+        // randomize the upper half, so that rejected operations do not hit the cluster all at once again
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void writeDeadLetters(List<BulkOperation> operations) {
+        if (operations.isEmpty()) return;
+
+        if (deadLetterSpool == null) {
+            log.error("Dropping " + operations.size() + " failed bulk operations, since no dead letter file is configured");
+        } else {
+            deadLetterSpool.append(operations);
+        }
+    }
+
+    /**
+     * Send all bulk operations again, which have been written to the dead letter file after all retries failed.
+     * The operations are sent without any version check, so a document written again after it was spooled is
+     * overwritten by its spooled operation. Only replay while the affected indices are not written otherwise,
+     * e.g. before indexing is started again or right before a complete rebuild of the index.
+     *
+     * @return the number of replayed operations
+     */
+    public int replayDeadLetters() throws IOException {
+        if (deadLetterSpool == null) return 0;
+        return deadLetterSpool.replay(elastic.getRestClient());
+    }
+
+    private long getBulkLatency(long executionId) {
+        Long start = bulkStartTimes.remove(executionId);
+        return start == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
     public void flush() {
         _bulkProcessor.flush();
+        indexGeneration.incrementAndGet();
+    }
+
+    /**
+     * Send all queued operations and wait until the cluster has answered all of them, including their retries.
+     *
+     * @param timeout is the maximum time to wait
+     * @param unit    is the unit of the timeout
+     * @return true if all operations have been answered, false if the timeout elapsed before
+     */
+    public boolean flushAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (true) {
+            // also sends retries which have been queued in the meantime, must not block the monitor
+            _bulkProcessor.flush();
+
+            synchronized (unfinishedOperationsMonitor) {
+                if (unfinishedOperations.get() <= 0) return true;
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) return false;
+
+                unfinishedOperationsMonitor.wait(Math.min(remaining, 200));
+            }
+        }
     }
 
     /**
@@ -205,19 +734,172 @@ public class IndexManager implements IIndexManager {
     }
 
     public void switchAlias(String aliasName, String oldIndex, String newIndex) {
+        // restore before the old index is removed, so that the alias is not empty while merging
+        restoreBulkBuildIndex(newIndex);
         if (oldIndex != null)
             removeFromAlias(aliasName, oldIndex);
-        addToAlias(aliasName, newIndex);
+        putAlias(aliasName, newIndex);
+        closeReindexSession(aliasName);
+    }
+
+    /**
+     * Switch an alias from one index to another in a single request, so that there's no moment where the
+     * alias points to no index or to both indices.
+     *
+     * @param aliasName is the alias to be switched
+     * @param oldIndex  is the index to be removed from the alias, may be null
+     * @param newIndex  is the index to be added to the alias
+     */
+    public void switchAliasAtomically(String aliasName, String oldIndex, String newIndex) {
+        restoreBulkBuildIndex(newIndex);
+        List<Action> actions = new ArrayList<>();
+        if (oldIndex != null) {
+            actions.add(Action.of(a -> a.remove(r -> r.index(oldIndex).alias(aliasName))));
+        }
+        actions.add(Action.of(a -> a.add(add -> add.index(newIndex).alias(aliasName))));
+
+        try {
+            _client.indices().updateAliases(u -> u.actions(actions));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            indicesChanged();
+        }
+        closeReindexSession(aliasName);
+    }
+
+    /**
+     * Copy the index an alias points to into a new index and switch the alias afterwards. The documents are copied by the
+     * cluster itself with the reindex API in automatically determined parallel slices. This is much faster than feeding
+     * all documents again, if only the mapping or the settings have changed. Documents written to the old index while
+     * copying are not guaranteed to reach the new index, so indexing should be paused meanwhile.
+     *
+     * @param aliasName        is the alias whose index shall be copied
+     * @param uuid             is a uuid to make the new index unique (uuid or name from iPlug)
+     * @param uuidName         is the name of the iPlug used in the index name
+     * @param esMapping        is the mapping of the new index
+     * @param esSettings       are the settings of the new index
+     * @param progressListener is called with the number of processed and total documents while copying, may be null
+     * @return the name of the new index
+     */
+    public String copyToNextIndex(String aliasName, String uuid, String uuidName, String esMapping, String esSettings, BiConsumer<Long, Long> progressListener) {
+        String oldIndex = getIndexNameFromAliasName(aliasName, null);
+        if (oldIndex == null || oldIndex.equals(aliasName)) {
+            throw new RuntimeException("Alias does not point to an index which can be copied: " + aliasName);
+        }
+
+        String newIndex = getNextIndexName(oldIndex, uuid, uuidName);
+        createIndex(newIndex, esMapping, esSettings);
+        log.info("Copying index " + oldIndex + " to " + newIndex);
+
+        String taskId = null;
+        try {
+            taskId = _client.reindex(r -> r
+                    .source(src -> src.index(oldIndex))
+                    .dest(dest -> dest.index(newIndex))
+                    .slices(Slices.of(sl -> sl.computed(SlicesCalculation.Auto)))
+                    .waitForCompletion(false)
+            ).task();
+
+            waitForReindexTask(taskId, progressListener);
+            refreshIndex(newIndex);
+            switchAliasAtomically(aliasName, oldIndex, newIndex);
+        } catch (IOException | RuntimeException e) {
+            if (taskId != null) cancelTask(taskId);
+            try {
+                // the alias update might have been executed although its answer got lost, e.g. on a timeout
+                if (loadAliasIndices(aliasName).contains(newIndex)) {
+                    log.warn("Switching alias " + aliasName + " to " + newIndex + " reported an error, but the alias points to the new index", e);
+                    closeReindexSession(aliasName);
+                    indicesChanged();
+                    return newIndex;
+                }
+                // the incomplete copy is not needed anymore
+                log.error("Copying index " + oldIndex + " to " + newIndex + " failed, deleting " + newIndex, e);
+                deleteIndex(newIndex);
+            } catch (RuntimeException deleteException) {
+                e.addSuppressed(deleteException);
+            }
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        }
+        log.info("Finished copying index " + oldIndex + " to " + newIndex);
+        return newIndex;
+    }
+
+    /**
+     * Try to cancel a task, e.g. a reindex task which is still running although we stopped waiting for it.
+     */
+    private void cancelTask(String taskId) {
+        try {
+            elastic.getRestClient().performRequest(new Request("POST", "/_tasks/" + taskId + "/_cancel"));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not cancel task " + taskId, e);
+        }
+    }
+
+    private void waitForReindexTask(String taskId, BiConsumer<Long, Long> progressListener) {
+        Request request = new Request("GET", "/_tasks/" + taskId);
+        try {
+            while (true) {
+                String body = EntityUtils.toString(elastic.getRestClient().performRequest(request).getEntity());
+                JSONObject result = (JSONObject) new JSONParser().parse(body);
+
+                JSONObject task = (JSONObject) result.get("task");
+                JSONObject status = task == null ? null : (JSONObject) task.get("status");
+                if (status != null) {
+                    long total = getLongValue(status, "total");
+                    long processed = getLongValue(status, "created") + getLongValue(status, "updated") + getLongValue(status, "deleted");
+                    if (log.isDebugEnabled()) {
+                        log.debug("Reindex task " + taskId + ": " + processed + " of " + total + " documents");
+                    }
+                    if (progressListener != null) progressListener.accept(processed, total);
+                }
+
+                if (Boolean.TRUE.equals(result.get("completed"))) {
+                    if (result.get("error") != null) {
+                        throw new RuntimeException("Reindex task " + taskId + " failed: " + result.get("error"));
+                    }
+                    JSONObject response = (JSONObject) result.get("response");
+                    JSONArray failures = response == null ? null : (JSONArray) response.get("failures");
+                    if (failures != null && !failures.isEmpty()) {
+                        throw new RuntimeException("Reindex task " + taskId + " failed for " + failures.size() + " documents, e.g.: " + failures.get(0));
+                    }
+                    return;
+                }
+
+                Thread.sleep(REINDEX_POLL_INTERVAL);
+            }
+        } catch (IOException | ParseException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for reindex task " + taskId, e);
+        }
+    }
+
+    private long getLongValue(JSONObject json, String key) {
+        Object value = json.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
     }
 
     public void addToAlias(String aliasName, String newIndex) {
+        restoreBulkBuildIndex(newIndex);
+        putAlias(aliasName, newIndex);
+    }
+
+    private void putAlias(String aliasName, String newIndex) {
         try {
             _client.indices().putAlias(add -> add
                     .name(aliasName)
                     .index(newIndex));
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            indicesChanged();
         }
+        // the old index of a rebuild does not need the writes anymore
+        closeReindexSession(aliasName);
     }
 
     public void removeFromAlias(String aliasName, String index) {
@@ -231,10 +913,13 @@ public class IndexManager implements IIndexManager {
                         .index(finalIndexNameFromAliasName));
             } catch (IOException e) {
                 throw new RuntimeException(e);
+            } finally {
+                indicesChanged();
             }
 
             indexNameFromAliasName = getIndexNameFromAliasName(aliasName, index);
         }
+        closeReindexSession(aliasName);
     }
 
     public void removeAlias(String aliasName) {
@@ -242,24 +927,60 @@ public class IndexManager implements IIndexManager {
     }
 
     public void deleteIndex(String index) {
+        // a rebuild cannot continue without one of its indices
+        reindexSessions.values().removeIf(session -> index.equals(session.getNewIndex()) || index.equals(session.getOldIndex()));
+        if ("ingrid_meta".equals(index)) {
+            iPlugDocIds.clear();
+            writtenHeartbeats.clear();
+        }
         try {
             _client.indices().delete(DeleteIndexRequest.of(d -> d.index(index)));
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            indicesChanged();
         }
     }
 
     public String[] getIndices(String filter) {
+        return metadataCache.getIndices(this::loadIndices).stream()
+                .filter(index -> index.contains(filter))
+                .toArray(String[]::new);
+    }
+
+    private List<String> loadIndices() {
         List<IndicesRecord> indicesRecords;
         try {
             indicesRecords = this._client.cat().indices().valueBody();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return indicesRecords.stream()
+        return Collections.unmodifiableList(indicesRecords.stream()
                 .map(IndicesRecord::index)
-                .filter(index -> index.contains(filter))
-                .toArray(String[]::new);
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Drop all cached information about indices and aliases, e.g. after they have been changed by another client.
+     */
+    public void invalidateMetadataCache() {
+        indicesChanged();
+    }
+
+    /**
+     * Called after indices, aliases or documents have been changed.
+     */
+    private void indicesChanged() {
+        metadataCache.invalidate();
+        indexGeneration.incrementAndGet();
+    }
+
+    /**
+     * @return a number which changes whenever indices, aliases or documents might have been changed through this
+     * IndexManager, e.g. to detect outdated search results
+     */
+    public long getIndexGeneration() {
+        return indexGeneration.get();
     }
 
     // type will not be used soon anymore
@@ -283,6 +1004,12 @@ public class IndexManager implements IIndexManager {
                 _client.indices().create(request.build());
             } catch (IOException e) {
                 throw new RuntimeException(e);
+            } finally {
+                indicesChanged();
+            }
+
+            if (_config.bulkBuildEnabled && !"ingrid_meta".equals(name)) {
+                applyBulkBuildSettings(name);
             }
 
             return true;
@@ -290,6 +1017,130 @@ public class IndexManager implements IIndexManager {
         return false;
     }
 
+    /**
+     * Prepare a new index for a fast initial load by disabling refreshes and replicas and by relaxing the translog
+     * durability. The settings the index was actually created with are stored in the _meta of the index mapping, to be
+     * restored when the index gets promoted, even by another process or after a restart.
+     */
+    private void applyBulkBuildSettings(String name) {
+        JSONObject createdSettings = getIndexSettings(name);
+        JSONObject settings = new JSONObject();
+        for (String key : BULK_BUILD_SETTINGS) {
+            // settings which are not set are reset to the default of the cluster
+            Object value = createdSettings.get("index." + key);
+            if (value != null) settings.put(key, value);
+        }
+
+        JSONObject meta = getMappingMeta(name);
+        meta.put(PRODUCTION_SETTINGS_META, settings);
+        putMappingMeta(name, meta);
+
+        putSettings(name, BULK_BUILD_PROFILE);
+        log.info("Applied bulk build settings to index: " + name);
+    }
+
+    /**
+     * @return the settings of an index as set on the index, in flat form like "index.number_of_replicas"
+     */
+    private JSONObject getIndexSettings(String name) {
+        try {
+            String body = EntityUtils.toString(elastic.getRestClient().performRequest(new Request("GET", "/" + name + "/_settings?flat_settings=true")).getEntity());
+            JSONObject result = (JSONObject) new JSONParser().parse(body);
+            JSONObject index = (JSONObject) result.get(name);
+            JSONObject settings = index == null ? null : (JSONObject) index.get("settings");
+            return settings == null ? new JSONObject() : settings;
+        } catch (IOException | ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * An index must not be searched while it still has the bulk build profile. The index is only checked if bulk
+     * builds are enabled, otherwise {@link #restoreProductionSettings(String)} has to be called explicitly for indices
+     * built before.
+     */
+    private void restoreBulkBuildIndex(String name) {
+        if (_config.bulkBuildEnabled && !"ingrid_meta".equals(name)) {
+            restoreProductionSettings(name);
+        }
+    }
+
+    /**
+     * Restore the settings of an index which was created with the bulk build profile, optionally merging its segments
+     * before. Nothing happens for indices which were not created with the bulk build profile or were restored already.
+     *
+     * @param name is the name of the index
+     */
+    public void restoreProductionSettings(String name) {
+        JSONObject meta = getMappingMeta(name);
+        JSONObject settings = (JSONObject) meta.remove(PRODUCTION_SETTINGS_META);
+        if (settings == null) return;
+
+        if (_config.bulkBuildForceMerge) {
+            // merging is cheaper before any replica has been allocated
+            try {
+                _client.indices().forcemerge(f -> f.index(name).maxNumSegments(_config.bulkBuildMaxSegments));
+            } catch (IOException e) {
+                log.warn("Could not force merge index: " + name, e);
+            }
+        }
+
+        JSONObject restoredSettings = new JSONObject();
+        for (String key : BULK_BUILD_SETTINGS) {
+            // null resets a setting to the default of the cluster
+            restoredSettings.put(key, settings.get(key));
+        }
+        JSONObject indexSettings = new JSONObject();
+        indexSettings.put("index", restoredSettings);
+        putSettings(name, indexSettings.toJSONString());
+
+        // the settings must not be restored again
+        putMappingMeta(name, meta);
+        refreshIndex(name);
+        log.info("Restored production settings of index: " + name);
+    }
+
+    /**
+     * @return the _meta of the mapping of an index, which is empty if there's none
+     */
+    private JSONObject getMappingMeta(String name) {
+        try {
+            String body = EntityUtils.toString(elastic.getRestClient().performRequest(new Request("GET", "/" + name + "/_mapping?filter_path=*.mappings._meta")).getEntity());
+            JSONObject result = (JSONObject) new JSONParser().parse(body);
+            JSONObject index = (JSONObject) result.get(name);
+            JSONObject mappings = index == null ? null : (JSONObject) index.get("mappings");
+            JSONObject meta = mappings == null ? null : (JSONObject) mappings.get("_meta");
+            return meta == null ? new JSONObject() : meta;
+        } catch (IOException | ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace the _meta of the mapping of an index.
+     */
+    private void putMappingMeta(String name, JSONObject meta) {
+        JSONObject mapping = new JSONObject();
+        mapping.put("_meta", meta);
+        Request request = new Request("PUT", "/" + name + "/_mapping");
+        request.setJsonEntity(mapping.toJSONString());
+        try {
+            elastic.getRestClient().performRequest(request);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void putSettings(String name, String settingsJson) {
+        Request request = new Request("PUT", "/" + name + "/_settings");
+        request.setJsonEntity(settingsJson);
+        try {
+            elastic.getRestClient().performRequest(request);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public boolean createIndex(String name, String source) {
         boolean indexExists = indexExists(name);
         if (!indexExists) {
@@ -303,6 +1154,8 @@ public class IndexManager implements IIndexManager {
                 _client.indices().create(request.build());
             } catch (IOException e) {
                 throw new RuntimeException(e);
+            } finally {
+                indicesChanged();
             }
 
             return true;
@@ -359,6 +1212,10 @@ public class IndexManager implements IIndexManager {
     }
 
     public boolean indexExists(String name) {
+        return metadataCache.indexExists(name, this::loadIndexExists);
+    }
+
+    private boolean loadIndexExists(String name) {
         try {
             return _client.indices().exists(ex -> ex.index(name)).value();
         } catch (IOException e) {
@@ -375,16 +1232,10 @@ public class IndexManager implements IIndexManager {
      */
     public String getIndexNameFromAliasName(String indexAlias, String partialName) {
 
-        Map<String, IndexAliases> indexToAliasesMap = null;
-        try {
-            boolean aliasExists = _client.indices().existsAlias(exists -> exists.name(indexAlias)).value();
-            if (aliasExists) indexToAliasesMap = _client.indices().getAlias(ar -> ar.name(indexAlias)).result();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        List<String> aliasIndices = metadataCache.getAliasIndices(indexAlias, this::loadAliasIndices);
 
-        if (indexToAliasesMap != null && !indexToAliasesMap.isEmpty()) {
-            Iterator<String> iterator = indexToAliasesMap.keySet().iterator();
+        if (!aliasIndices.isEmpty()) {
+            Iterator<String> iterator = aliasIndices.iterator();
             String result = null;
             while (iterator.hasNext()) {
                 String next = iterator.next();
@@ -401,6 +1252,19 @@ public class IndexManager implements IIndexManager {
         return null;
     }
 
+    private List<String> loadAliasIndices(String indexAlias) {
+        Map<String, IndexAliases> indexToAliasesMap = null;
+        try {
+            boolean aliasExists = _client.indices().existsAlias(exists -> exists.name(indexAlias)).value();
+            if (aliasExists) indexToAliasesMap = _client.indices().getAlias(ar -> ar.name(indexAlias)).result();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (indexToAliasesMap == null) return Collections.emptyList();
+        return Collections.unmodifiableList(new ArrayList<>(indexToAliasesMap.keySet()));
+    }
+
     public Map<String, Object> getMapping(IndexInfo indexInfo) {
         String indexName = getIndexNameFromAliasName(indexInfo.getRealIndexName(), null);
         IndexMappingRecord mappingMetaData;
@@ -428,6 +1292,49 @@ public class IndexManager implements IIndexManager {
         return _client;
     }
 
+    public ElasticsearchAsyncClient getAsyncClient() {
+        return elastic.getAsyncClient();
+    }
+
+    /**
+     * Read all documents of an index or alias with a batch size of 1000 without slicing.
+     *
+     * @see #exportDocuments(String, int, int)
+     */
+    public Stream<ElasticDocument> exportDocuments(String indexOrAlias) {
+        return exportDocuments(indexOrAlias, 1000, 1);
+    }
+
+    /**
+     * Read all documents of an index or alias lazily from a point-in-time, so that the result is consistent
+     * and only one batch per slice is held in memory. The documents are not returned in a specific order.
+     * The stream should be closed after use to release the point-in-time, otherwise it expires after the
+     * configured keep alive of inactivity.
+     *
+     * @param batchSize is the number of documents requested at once
+     * @param slices is the number of slices, which are read concurrently when using a parallel stream
+     */
+    public Stream<ElasticDocument> exportDocuments(String indexOrAlias, int batchSize, int slices) {
+        Time keepAlive = Time.of(t -> t.time(_config.pitKeepAlive));
+        // the id of the point-in-time can change with every page, the most recent one is closed
+        AtomicReference<String> pitId;
+        try {
+            pitId = new AtomicReference<>(_client.openPointInTime(o -> o.index(indexOrAlias).keepAlive(keepAlive)).id());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        DocumentExportSpliterator spliterator = new DocumentExportSpliterator(_client, pitId, keepAlive, batchSize, Math.max(1, slices));
+        return StreamSupport.stream(spliterator, false)
+                .onClose(() -> {
+                    try {
+                        _client.closePointInTime(c -> c.id(pitId.get()));
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Could not close point-in-time of export from: " + indexOrAlias, e);
+                    }
+                });
+    }
+
     public String printSettings() {
         try {
             return _client.indices().getSettings().toString();
@@ -437,6 +1344,23 @@ public class IndexManager implements IIndexManager {
     }
 
     public void shutdown() {
+        if (retryScheduler != null) {
+            retryScheduler.shutdownNow();
+            // do not lose operations which are still waiting for their retry, unless their document was written again
+            List<BulkOperation> deadLetters = new ArrayList<>();
+            for (Map.Entry<BulkOperation, BulkItemContext> entry : scheduledRetries.entrySet()) {
+                if (isSuperseded(entry.getKey(), entry.getValue())) {
+                    finishOperation(entry.getKey(), entry.getValue(), null, new IllegalStateException("Shut down before retry, operation was dropped since the document was written again"));
+                } else {
+                    deadLetters.add(entry.getKey());
+                }
+            }
+            writeDeadLetters(deadLetters);
+            for (BulkOperation operation : deadLetters) {
+                finishOperation(operation, scheduledRetries.get(operation), null, new IllegalStateException("Shut down before retry, operation was written to dead letter file"));
+            }
+            scheduledRetries.clear();
+        }
         _client.shutdown();
     }
 
@@ -556,88 +1480,334 @@ public class IndexManager implements IIndexManager {
         if (hits.total().value() > 2) {
             log.warn("There are more than 2 documents found for indexId starting with " + uuid);
         }
-        hits.hits().forEach(hit -> {
-            _bulkProcessor.add(BulkOperation.of(b -> b.index(ur -> ur
+        // the documents are replaced, so that the stored plug description is exactly the current one
+        List<BulkOperation> operations = new ArrayList<>();
+        Set<String> iPlugIds = new HashSet<>();
+        for (Hit<ElasticDocument> hit : hits.hits()) {
+            operations.add(BulkOperation.of(b -> b.index(ur -> ur
                     .index("ingrid_meta")
                     .id(hit.id())
                     .document(jsonData)))
             );
-        });
+            Object indexId = hit.source() == null ? null : hit.source().get("indexId");
+            iPlugIds.add(indexId == null ? uuid : indexId.toString());
+        }
+        if (operations.isEmpty()) return;
 
+        // written immediately under the locks of the iPlugs, so that no heartbeat is overwritten afterwards
+        List<ReentrantLock> locks = getIPlugInformationLocks(iPlugIds);
+        locks.forEach(ReentrantLock::lock);
+        try {
+            BulkResponse bulkResponse = _client.bulk(b -> b.operations(operations));
+            for (BulkResponseItem item : bulkResponse.items()) {
+                if (item.error() != null) {
+                    log.error("Could not update plug description in document " + item.id() + ": " + item.error().reason());
+                }
+            }
+        } finally {
+            // the heartbeat fields were removed, so the next heartbeat has to write all of them again
+            for (String iPlugId : iPlugIds) {
+                writtenHeartbeats.remove(iPlugId);
+                iPlugDocIds.remove(iPlugId);
+            }
+            locks.forEach(ReentrantLock::unlock);
+        }
     }
 
     @Override
     public void updateIPlugInformation(String id, JSONObject info) throws InterruptedException, ExecutionException {
-        synchronized (this) {
-            String docId;
+        updateIPlugInformation(Collections.singletonMap(id, info));
+    }
+
+    /**
+     * Create or update the information documents of several iPlugs in ingrid_meta. The documents of known iPlugs
+     * are updated directly by their ID, all others are looked up with one multi search. All changes are written
+     * with one bulk request. Only the iPlugs being updated are locked, so that updates of other iPlugs can run
+     * concurrently.
+     */
+    public void updateIPlugInformation(Map<String, JSONObject> infos) {
+        updateIPlugInformation(infos, false);
+    }
 
-            // the iPlugDocIdMap can lead to problems if a wrong ID was stored once, then the iBus has to be restarted
-            SearchResponse<ElasticDocument> response;
+    /**
+     * @param healing is true if the documents are updated again, because their registered ID was outdated
+     */
+    private void updateIPlugInformation(Map<String, JSONObject> infos, boolean healing) {
+        if (infos.isEmpty()) {
+            return;
+        }
+
+        List<ReentrantLock> locks = getIPlugInformationLocks(infos.keySet());
+        locks.forEach(ReentrantLock::lock);
+        try {
+            List<BulkOperation> operations = new ArrayList<>();
+            // the iPlug ID of each operation or null if the operation does not affect the registered document
+            List<String> operationIPlugIds = new ArrayList<>();
+            List<String> unknownIds = new ArrayList<>();
+            long now = System.nanoTime();
+
+            for (Map.Entry<String, JSONObject> entry : infos.entrySet()) {
+                String docId = iPlugDocIds.get(entry.getKey());
+                if (docId == null) {
+                    unknownIds.add(entry.getKey());
+                    continue;
+                }
+
+                JSONObject info = entry.getValue();
+                WrittenHeartbeat written = writtenHeartbeats.get(entry.getKey());
+                if (!healing && written != null && written.contentHash.equals(getHeartbeatContentHash(info))) {
+                    // only volatile fields changed, which are written less often and without the rest of the document
+                    if (now - written.volatileWriteTime < TimeUnit.MILLISECONDS.toNanos(_config.heartbeatVolatileInterval)) {
+                        continue;
+                    }
+                    info = getVolatileHeartbeatFields(info);
+                    if (info.isEmpty()) {
+                        continue;
+                    }
+                }
+                operations.add(createIPlugInformationUpdate(docId, info));
+                operationIPlugIds.add(entry.getKey());
+            }
+
+            boolean documentsAddedOrRemoved = !unknownIds.isEmpty()
+                    && addIPlugInformationOperations(unknownIds, infos, operations, operationIPlugIds);
+
+            if (operations.isEmpty()) {
+                return;
+            }
+
+            // written immediately, so that the documents are available for further requests
+            List<String> outdatedIds = new ArrayList<>();
             try {
-                response = _client.search(s -> s
-                                .index("ingrid_meta")
-                                .query(TermQuery.of(tq -> tq.field("indexId").value(id))._toQuery())
-                                .sort(SortOptions.of(so -> so.field(f -> f
-                                        .field("lastIndexed")
-                                        .order(SortOrder.Desc))))// sort to get most current on top
-                        // .setFetchSource( new String[] { "*" }, null )
-                        // .setSize(1)
-                        , ElasticDocument.class);
+                // make sure created plugInfo is searchable to prevent duplicates, concurrent writes share one refresh
+                BulkResponse bulkResponse = _client.bulk(b -> b
+                        .operations(operations)
+                        .refresh(documentsAddedOrRemoved ? Refresh.WaitFor : Refresh.False));
+                for (int i = 0; i < bulkResponse.items().size(); i++) {
+                    BulkResponseItem bulkItem = bulkResponse.items().get(i);
+                    String iPlugId = operationIPlugIds.get(i);
+                    if (bulkItem.error() == null) {
+                        if (iPlugId != null) {
+                            iPlugDocIds.put(iPlugId, bulkItem.id());
+                            writtenHeartbeats.put(iPlugId, new WrittenHeartbeat(getHeartbeatContentHash(infos.get(iPlugId)), now));
+                        }
+                    } else if (iPlugId != null && bulkItem.status() == 404 && bulkItem.operationType() == OperationType.Update) {
+                        // document was removed in the meantime, e.g. by another iBus
+                        iPlugDocIds.remove(iPlugId);
+                        writtenHeartbeats.remove(iPlugId);
+                        outdatedIds.add(iPlugId);
+                    } else {
+                        if (iPlugId != null) {
+                            writtenHeartbeats.remove(iPlugId);
+                        }
+                        log.error("Could not write iPlug information document " + bulkItem.id() + ": " + bulkItem.error().reason());
+                    }
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
 
-            HitsMetadata<ElasticDocument> hits = response.hits();
-            long totalHits = hits.total().value();
+            if (!outdatedIds.isEmpty()) {
+                if (healing) {
+                    log.error("Could not update iPlug information of: " + outdatedIds);
+                } else {
+                    Map<String, JSONObject> outdatedInfos = new LinkedHashMap<>();
+                    outdatedIds.forEach(id -> outdatedInfos.put(id, infos.get(id)));
+                    updateIPlugInformation(outdatedInfos, true);
+                }
+            }
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+    }
 
-            // do update document
-            if (totalHits == 1) {
-                docId = hits.hits().get(0).id();
-                // add index request to queue to avoid sending of too many requests
-                _bulkProcessor.add(BulkOperation.of(op -> op
-                        .update(idx -> idx
-                                .index("ingrid_meta")
-                                .id(docId)
-                                .action(a -> a.doc(info))
-                        )));
-            } else if (totalHits == 0) {
-                // create document immediately so that it's available for further requests
-                try {
-                    _client.index(IndexRequest.of(ir -> ir.index("ingrid_meta").document(info)));
-                    // make sure created plugInfo is updated to prevent duplicates
-                    refreshIndex("ingrid_meta");
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Look up the documents of iPlugs, which are not registered yet, and add the operations to update them.
+     * Duplicate documents of an iPlug are removed.
+     *
+     * @return true if documents will be added or removed
+     */
+    private boolean addIPlugInformationOperations(List<String> ids, Map<String, JSONObject> infos, List<BulkOperation> operations, List<String> operationIPlugIds) {
+        MsearchResponse<ElasticDocument> response;
+        try {
+            response = _client.msearch(m -> {
+                for (String id : ids) {
+                    m.searches(item -> item
+                            .header(h -> h.index("ingrid_meta"))
+                            .body(b -> b
+                                    .query(TermQuery.of(tq -> tq.field("indexId").value(id))._toQuery())
+                                    .sort(SortOptions.of(so -> so.field(f -> f
+                                            .field("lastIndexed")
+                                            .order(SortOrder.Desc))))));// sort to get most current on top
                 }
+                return m;
+            }, ElasticDocument.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        boolean documentsAddedOrRemoved = false;
+        for (int i = 0; i < ids.size(); i++) {
+            String id = ids.get(i);
+            JSONObject info = infos.get(id);
+            MultiSearchResponseItem<ElasticDocument> item = response.responses().get(i);
+            if (item.isFailure()) {
+                // do not create a new document, since there might be one already
+                log.error("Could not get iPlug information of: " + id + ": " + item.failure().error().reason());
+                continue;
+            }
+
+            List<Hit<ElasticDocument>> searchHits = item.result().hits().hits();
+            if (searchHits.size() == 1) {
+                operations.add(createIPlugInformationUpdate(searchHits.get(0).id(), info));
+                operationIPlugIds.add(id);
+            } else if (searchHits.isEmpty()) {
+                operations.add(BulkOperation.of(op -> op
+                        .index(idx -> idx
+                                .index("ingrid_meta")
+                                .document(info))));
+                operationIPlugIds.add(id);
+                documentsAddedOrRemoved = true;
             } else {
                 log.warn("There is more than one iPlug information document in the index of: " + id);
                 log.warn("Removing items and adding new one");
-                List<Hit<ElasticDocument>> searchHits = hits.hits();
                 // delete all hits except the first one
-                for (int i = 1; i < searchHits.size(); i++) {
-                    Hit<ElasticDocument> hit = searchHits.get(i);
-                    _bulkProcessor.add(BulkOperation.of(b -> b
+                for (int j = 1; j < searchHits.size(); j++) {
+                    Hit<ElasticDocument> hit = searchHits.get(j);
+                    operations.add(BulkOperation.of(b -> b
                             .delete(d -> d
                                     .index("ingrid_meta")
                                     .id(hit.id())))
                     );
+                    operationIPlugIds.add(null);
                 }
-                flush();
 
-                // add first hit, which we did not delete
-                _bulkProcessor.add(BulkOperation.of(b -> b
+                // replace first hit, which we did not delete
+                operations.add(BulkOperation.of(b -> b
                         .index(u -> u
                                 .index("ingrid_meta")
                                 .id(searchHits.get(0).id())
                                 .document(info)))
                 );
+                operationIPlugIds.add(id);
+                documentsAddedOrRemoved = true;
             }
         }
+        return documentsAddedOrRemoved;
+    }
+
+    /**
+     * @return a hash of all fields of the iPlug information, which do not change with every heartbeat
+     */
+    private String getHeartbeatContentHash(JSONObject info) {
+        Map<Object, Object> content = new TreeMap<>(Comparator.comparing(String::valueOf));
+        content.putAll(info);
+        for (String field : _config.heartbeatVolatileFields) {
+            content.remove(field);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(JSONValue.toJSONString(content).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private JSONObject getVolatileHeartbeatFields(JSONObject info) {
+        JSONObject volatileFields = new JSONObject();
+        for (String field : _config.heartbeatVolatileFields) {
+            if (info.containsKey(field)) {
+                volatileFields.put(field, info.get(field));
+            }
+        }
+        return volatileFields;
+    }
+
+    private BulkOperation createIPlugInformationUpdate(String docId, JSONObject info) {
+        return BulkOperation.of(op -> op
+                .update(idx -> idx
+                        .index("ingrid_meta")
+                        .id(docId)
+                        .action(a -> a.doc(info))
+                ));
+    }
+
+    /**
+     * Register the document IDs of all iPlugs in ingrid_meta, so that their information can be updated without
+     * searching first. iPlugs with more than one document are not registered, so that the duplicates are
+     * removed with their next update.
+     */
+    private void loadIPlugDocIds() {
+        try {
+            if (!indexExists("ingrid_meta")) {
+                return;
+            }
+
+            Map<String, String> docIds = new HashMap<>();
+            Set<String> duplicates = new HashSet<>();
+
+            // page through all documents, there might be more than a single search can return
+            Time keepAlive = Time.of(t -> t.time(_config.pitKeepAlive));
+            String pitId = _client.openPointInTime(o -> o.index("ingrid_meta").keepAlive(keepAlive)).id();
+            try {
+                List<FieldValue> searchAfter = null;
+                while (true) {
+                    String currentPitId = pitId;
+                    SearchRequest.Builder srb = new SearchRequest.Builder()
+                            .pit(p -> p.id(currentPitId).keepAlive(keepAlive))
+                            .size(IPLUG_DOC_IDS_PAGE_SIZE)
+                            .sort(so -> so.field(f -> f.field("_shard_doc").order(SortOrder.Asc)))
+                            .source(src -> src.filter(f -> f.includes("indexId")));
+                    if (searchAfter != null) {
+                        srb.searchAfter(searchAfter);
+                    }
+                    SearchResponse<ElasticDocument> response = _client.search(srb.build(), ElasticDocument.class);
+                    if (response.pitId() != null) {
+                        pitId = response.pitId();
+                    }
+
+                    List<Hit<ElasticDocument>> hits = response.hits().hits();
+                    for (Hit<ElasticDocument> hit : hits) {
+                        Object indexId = hit.source() == null ? null : hit.source().get("indexId");
+                        if (indexId != null && docIds.put(indexId.toString(), hit.id()) != null) {
+                            duplicates.add(indexId.toString());
+                        }
+                    }
+                    if (hits.size() < IPLUG_DOC_IDS_PAGE_SIZE) {
+                        break;
+                    }
+                    searchAfter = hits.get(hits.size() - 1).sort();
+                }
+            } finally {
+                String lastPitId = pitId;
+                _client.closePointInTime(c -> c.id(lastPitId));
+            }
+            duplicates.forEach(docIds::remove);
+            iPlugDocIds.putAll(docIds);
+        } catch (IOException | RuntimeException e) {
+            // the documents will be looked up when they are updated
+            log.warn("Could not load the IDs of the iPlug information documents", e);
+        }
+    }
+
+    /**
+     * @return the locks of the given iPlugs, always in the same order to prevent deadlocks
+     */
+    private List<ReentrantLock> getIPlugInformationLocks(Collection<String> ids) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String id : ids) {
+            stripes.add(Math.floorMod(id.hashCode(), iPlugInformationLocks.length));
+        }
+        return stripes.stream()
+                .map(stripe -> iPlugInformationLocks[stripe])
+                .collect(Collectors.toList());
     }
 
     @Override
     public void updateHearbeatInformation(Map<String, Object> iPlugIdInfos) throws ExecutionException {
         checkAndCreateInformationIndex();
+        Map<String, JSONObject> infos = new LinkedHashMap<>();
         for (String id : iPlugIdInfos.keySet()) {
             try {
                 Object info = iPlugIdInfos.get(id);
@@ -645,13 +1815,12 @@ public class IndexManager implements IIndexManager {
                 if (info instanceof String) {
                     json = (JSONObject) new JSONParser().parse((String) info);
                 } else json = (JSONObject) info;
-                updateIPlugInformation(id, json);
-            } catch (InterruptedException ex) {
-                log.warn("updateHearbeatInformation was interrupted for ID: " + id);
+                infos.put(id, json);
             } catch (ParseException e) {
                 log.warn("updateHearbeatInformation could not be parsed for ID: " + id + " and content: " + iPlugIdInfos.get(id));
             }
         }
+        updateIPlugInformation(infos);
     }
 
     /**
@@ -697,29 +1866,9 @@ public class IndexManager implements IIndexManager {
     }
 
     public ElasticDocument getDocById(IngridHit hit) {
-        String idAsString = String.valueOf(hit.getDocumentId());
-        String plugId = hit.getPlugId();
-        List<String> indexNames = Arrays.stream(_config.activeIndices).map(IndexInfo::getRealIndexName).collect(Collectors.toList());
         try {
-            List<Hit<ElasticDocument>> hits = this._client.search((g) -> g
-                            .index(indexNames)
-                            .ignoreUnavailable(true)
-                            .query(
-                                    BoolQuery.of(bq -> bq.must(
-                                                    TermQuery.of(tq -> tq.field("iPlugId").value(plugId))._toQuery(),
-                                                    IdsQuery.of(idQ -> idQ.values(idAsString))._toQuery()
-                                            )
-                                    )._toQuery())
-                            .source((s) -> s.fetch(true))
-                    , ElasticDocument.class).hits().hits();
-
-            if (hits.isEmpty()) return null;
-
-            Map<String, Object> source = hits.get(0).source();
-
-            if (source != null) {
-                return new ElasticDocument(source);
-            }
+            List<Hit<ElasticDocument>> hits = this._client.search(createDocByIdRequest(hit), ElasticDocument.class).hits().hits();
+            return getFirstDocument(hits);
         } catch (Exception ex) {
             log.warn("Index was not found. We probably have to clean up or refresh the active indices here. Exception is: " + ex.getMessage());
         }
@@ -727,4 +1876,43 @@ public class IndexManager implements IIndexManager {
         return null;
     }
 
+    /**
+     * Same as {@link #getDocById(IngridHit)} without blocking the calling thread.
+     */
+    public CompletableFuture<ElasticDocument> getDocByIdAsync(IngridHit hit) {
+        return getAsyncClient().search(createDocByIdRequest(hit), ElasticDocument.class)
+                .thenApply(response -> getFirstDocument(response.hits().hits()))
+                .exceptionally(ex -> {
+                    log.warn("Index was not found. We probably have to clean up or refresh the active indices here. Exception is: " + ex.getMessage());
+                    return null;
+                });
+    }
+
+    private SearchRequest createDocByIdRequest(IngridHit hit) {
+        String idAsString = String.valueOf(hit.getDocumentId());
+        String plugId = hit.getPlugId();
+        List<String> indexNames = Arrays.stream(_config.activeIndices).map(IndexInfo::getRealIndexName).collect(Collectors.toList());
+        return SearchRequest.of((g) -> g
+                .index(indexNames)
+                .ignoreUnavailable(true)
+                .query(
+                        BoolQuery.of(bq -> bq.must(
+                                        TermQuery.of(tq -> tq.field("iPlugId").value(plugId))._toQuery(),
+                                        IdsQuery.of(idQ -> idQ.values(idAsString))._toQuery()
+                                )
+                        )._toQuery())
+                .source((s) -> s.fetch(true)));
+    }
+
+    private ElasticDocument getFirstDocument(List<Hit<ElasticDocument>> hits) {
+        if (hits.isEmpty()) return null;
+
+        Map<String, Object> source = hits.get(0).source();
+
+        if (source != null) {
+            return new ElasticDocument(source);
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,132 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Caches cluster metadata like the indices of an alias for a limited time, so that frequent lookups
+ * during indexing and searching do not need a request each. All entries are dropped as soon as the
+ * metadata is changed through the IndexManager. Changes done by other clients are visible after the TTL.
+ */
+public class MetadataCache {
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expires;
+
+        private Entry(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttl;
+
+    private final ConcurrentMap<String, Entry<List<String>>> aliasIndices = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Entry<Boolean>> indexExists = new ConcurrentHashMap<>();
+
+    private final AtomicReference<Entry<List<String>>> indices = new AtomicReference<>();
+
+    // incremented on every invalidation, so that values loaded before are not stored afterwards
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param ttl is the time in milliseconds an entry is valid, caching is disabled if not positive
+     */
+    public MetadataCache(long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * @return the names of the indices the alias points to, which is empty if the alias does not exist
+     */
+    public List<String> getAliasIndices(String alias, Function<String, List<String>> loader) {
+        return getOrLoad(aliasIndices, alias, loader);
+    }
+
+    public boolean indexExists(String name, Function<String, Boolean> loader) {
+        return getOrLoad(indexExists, name, loader);
+    }
+
+    /**
+     * @return the names of all indices of the cluster
+     */
+    public List<String> getIndices(Supplier<List<String>> loader) {
+        if (ttl <= 0) return loader.get();
+
+        long now = System.nanoTime();
+        Entry<List<String>> entry = indices.get();
+        if (entry != null && entry.expires - now > 0) {
+            return entry.value;
+        }
+
+        long currentGeneration = generation.get();
+        List<String> value = loader.get();
+        if (generation.get() == currentGeneration) {
+            Entry<List<String>> newEntry = new Entry<>(value, now + ttl);
+            indices.set(newEntry);
+            // an invalidation might have happened in between
+            if (generation.get() != currentGeneration) indices.compareAndSet(newEntry, null);
+        }
+        return value;
+    }
+
+    /**
+     * Remove all entries. Must be called after each change of indices or aliases.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        aliasIndices.clear();
+        indexExists.clear();
+        indices.set(null);
+    }
+
+    private <T> T getOrLoad(ConcurrentMap<String, Entry<T>> cache, String key, Function<String, T> loader) {
+        if (ttl <= 0) return loader.apply(key);
+
+        long now = System.nanoTime();
+        Entry<T> entry = cache.get(key);
+        if (entry != null && entry.expires - now > 0) {
+            return entry.value;
+        }
+
+        long currentGeneration = generation.get();
+        T value = loader.apply(key);
+        if (generation.get() == currentGeneration) {
+            Entry<T> newEntry = new Entry<>(value, now + ttl);
+            cache.put(key, newEntry);
+            // an invalidation might have happened in between
+            if (generation.get() != currentGeneration) cache.remove(key, newEntry);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,76 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch;
+
+/**
+ * Describes a running rebuild of an index: while the new index is filled, the alias still points to the old
+ * index, which therefore has to receive all writes as well until the alias is switched.
+ */
+public class ReindexSession {
+
+    private final String aliasName;
+
+    private final String oldIndex;
+
+    private final String newIndex;
+
+    private final long startTime;
+
+    public ReindexSession(String aliasName, String oldIndex, String newIndex) {
+        this.aliasName = aliasName;
+        this.oldIndex = oldIndex;
+        this.newIndex = newIndex;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public String getAliasName() {
+        return aliasName;
+    }
+
+    /**
+     * @return the index the alias points to during the rebuild, or null if the alias did not exist yet
+     */
+    public String getOldIndex() {
+        return oldIndex;
+    }
+
+    public String getNewIndex() {
+        return newIndex;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return true if the session belongs to writes into the given index
+     */
+    public boolean isFor(String index) {
+        return newIndex.equals(index);
+    }
+
+    @Override
+    public String toString() {
+        return aliasName + ": " + oldIndex + " -> " + newIndex;
+    }
+}
@@ -0,0 +1,106 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch.search;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The position inside a result set which is walked with a point-in-time and search_after. It is handed to
+ * clients as an opaque string, which they pass with the next search to get the following page.
+ */
+public class ContinuationToken {
+
+    private final String pitId;
+
+    private final List<FieldValue> searchAfter;
+
+    public ContinuationToken(String pitId, List<FieldValue> searchAfter) {
+        this.pitId = pitId;
+        this.searchAfter = searchAfter;
+    }
+
+    public String getPitId() {
+        return pitId;
+    }
+
+    /**
+     * @return the sort values of the last hit of the previous page
+     */
+    public List<FieldValue> getSearchAfter() {
+        return searchAfter;
+    }
+
+    @SuppressWarnings("unchecked")
+    public String encode() {
+        JSONArray values = new JSONArray();
+        for (FieldValue value : searchAfter) {
+            values.add(value.isNull() ? null : value._get());
+        }
+
+        JSONObject token = new JSONObject();
+        token.put("pit", pitId);
+        token.put("after", values);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token was not created by {@link #encode()}
+     */
+    public static ContinuationToken decode(String token) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            JSONObject parsed = (JSONObject) new JSONParser().parse(json);
+
+            List<FieldValue> searchAfter = new ArrayList<>();
+            for (Object value : (JSONArray) parsed.get("after")) {
+                searchAfter.add(toFieldValue(value));
+            }
+            return new ContinuationToken((String) parsed.get("pit"), searchAfter);
+        } catch (ParseException | ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token, e);
+        }
+    }
+
+    private static FieldValue toFieldValue(Object value) {
+        if (value == null) {
+            return FieldValue.NULL;
+        } else if (value instanceof Long) {
+            return FieldValue.of((Long) value);
+        } else if (value instanceof Number) {
+            return FieldValue.of(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            return FieldValue.of((Boolean) value);
+        } else {
+            return FieldValue.of(value.toString());
+        }
+    }
+}
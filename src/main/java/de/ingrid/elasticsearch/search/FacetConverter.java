@@ -23,6 +23,7 @@
 package de.ingrid.elasticsearch.search;
 
 import co.elastic.clients.elasticsearch._types.aggregations.*;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import de.ingrid.elasticsearch.search.converter.QueryConverter;
 import de.ingrid.elasticsearch.search.facets.FacetClassDefinition;
@@ -40,9 +41,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class FacetConverter {
@@ -54,18 +58,46 @@ public class FacetConverter {
 
     private final QueryConverter queryConverter;
 
+    // protects against unbounded growth, if clients send many different facet definitions
+    private static final int MAX_FACET_PLANS = 1000;
+
+    // compiled aggregations by facet definitions
+    private final Map<String, Map<String, Aggregation>> facetPlans = new ConcurrentHashMap<>();
+
     @Autowired
     public FacetConverter(QueryConverter qc) {
         this.queryConverter = qc;
     }
 
+    /**
+     * Get the aggregations for the facets of a query. The aggregations are compiled only once per distinct
+     * processed facet definition, since the definitions rarely change between requests. The returned map must not be
+     * modified.
+     */
     public Map<String, Aggregation> getAggregations(IngridQuery ingridQuery) {
         List<FacetDefinition> defs = FacetUtils.getFacetDefinitions(ingridQuery);
+        if (defs == null) {
+            return Collections.emptyMap();
+        }
 
+        // the processors run for every query, since their result might depend on time or data
         for (IFacetDefinitionProcessor facetdefProcessor : facetDefinitionProcessors) {
             facetdefProcessor.process(defs);
         }
 
+        String planKey = createPlanKey(defs);
+        Map<String, Aggregation> plan = facetPlans.get(planKey);
+        if (plan == null) {
+            plan = compileAggregations(defs);
+            if (facetPlans.size() >= MAX_FACET_PLANS) {
+                facetPlans.clear();
+            }
+            facetPlans.put(planKey, plan);
+        }
+        return plan;
+    }
+
+    private Map<String, Aggregation> compileAggregations(List<FacetDefinition> defs) {
         Map<String, Aggregation> aggregations = new HashMap<>();
 
         for (FacetDefinition facetDefinition : defs) {
@@ -75,22 +107,42 @@ public class FacetConverter {
             Aggregation aggr;
 
             if (classes != null) {
+                // all classes of a facet are counted by one aggregation with a bucket for each class
+                Map<String, Query> classFilters = new LinkedHashMap<>();
                 for (FacetClassDefinition fClass : classes) {
                     try {
                         IngridQuery facetQuery = QueryStringParser.parse(fClass.getFragment());
-                        aggr = AggregationBuilders.filter(b -> b.bool(queryConverter.convert(facetQuery).build()));
-                        aggregations.put(fClass.getName(), aggr);
+                        classFilters.put(fClass.getName(), queryConverter.convert(facetQuery).build()._toQuery());
                     } catch (ParseException e) {
                         log.error("Error during parsing facets", e);
                     }
                 }
+                if (!classFilters.isEmpty()) {
+                    aggr = AggregationBuilders.filters(f -> f.filters(b -> b.keyed(classFilters)));
+                    aggregations.put(name, aggr);
+                }
             } else {
                 aggr = AggregationBuilders.terms(t -> t.field(field).size(1000));
                 aggregations.put(name, aggr);
             }
         }
 
-        return aggregations;
+        return Collections.unmodifiableMap(aggregations);
+    }
+
+    private String createPlanKey(List<FacetDefinition> defs) {
+        StringBuilder key = new StringBuilder();
+        for (FacetDefinition def : defs) {
+            key.append(def.getName()).append('|').append(def.getField()).append('|').append(def.getQueryFragment()).append('[');
+            List<FacetClassDefinition> classes = def.getClasses();
+            if (classes != null) {
+                for (FacetClassDefinition fClass : classes) {
+                    key.append(fClass.getName()).append('=').append(fClass.getFragment()).append(';');
+                }
+            }
+            key.append("]\n");
+        }
+        return key.toString();
     }
 
     public IngridDocument convertFacetResultsToDoc(SearchResponse<ElasticDocument> response) {
@@ -106,6 +158,11 @@ public class FacetConverter {
                     for (StringTermsBucket bucket : termsAggregate.buckets().array()) {
                         facets.put(entry.getKey() + ":" + bucket.key().stringValue(), bucket.docCount());
                     }
+                } else if (aggregate._kind() == Aggregate.Kind.Filters) {
+                    // the buckets are named after the facet classes, which already contain the facet name
+                    for (Map.Entry<String, FiltersBucket> bucket : aggregate.filters().buckets().keyed().entrySet()) {
+                        facets.put(bucket.getKey(), bucket.getValue().docCount());
+                    }
                 } else if (aggregate._kind() == Aggregate.Kind.Filter) {
                     facets.put(entry.getKey(), aggregate.filter().docCount());
                 } else {
@@ -0,0 +1,37 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch.search;
+
+import de.ingrid.utils.IngridHits;
+import de.ingrid.utils.query.IngridQuery;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of {@link de.ingrid.utils.ISearcher}.
+ */
+public interface IAsyncSearcher {
+
+    CompletableFuture<IngridHits> searchAsync(IngridQuery ingridQuery, int startHit, int num);
+
+}
@@ -22,13 +22,18 @@
  */
 package de.ingrid.elasticsearch.search;
 
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.FieldValue;
 import co.elastic.clients.elasticsearch._types.ShardFailure;
 import co.elastic.clients.elasticsearch._types.SortOptions;
 import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
 import co.elastic.clients.elasticsearch._types.mapping.FieldType;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.FunctionScoreQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch._types.query_dsl.QueryBuilders;
+import co.elastic.clients.elasticsearch.core.OpenPointInTimeResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.search.*;
@@ -52,10 +57,18 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 @Component
-public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
+public class IndexImpl implements ISearcher, IDetailer, IRecordLoader, IAsyncSearcher, IAsyncDetailer {
 
     private static final Logger log = LogManager.getLogger(IndexImpl.class);
 
@@ -73,8 +86,17 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
 
     private final String[] detailFields;
 
+    /**
+     * Key of the continuation token in a query and in its hits when walking through the results with a
+     * point-in-time. An empty token in the query starts at the first hit, the start hit is ignored then.
+     */
+    public static final String CONTINUATION_TOKEN = "continuationToken";
+
     private final IndexManager indexManager;
 
+    // only set if search results shall be cached
+    private final SearchResultCache resultCache;
+
 
     @Autowired
     public IndexImpl(ElasticConfig config, IndexManager indexManager, QueryConverter qc, FacetConverter fc, QueryBuilderService queryBuilderService) {
@@ -93,42 +115,232 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
 
         this.queryConverter = qc;
         this.facetConverter = fc;
+        this.resultCache = config.searchCacheEnabled ? new SearchResultCache(config) : null;
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public IngridHits search(IngridQuery ingridQuery, int startHit, int num) {
+        if (isCursorSearch(ingridQuery) || isSeparateFacetRequest(ingridQuery)) {
+            // hits and facets are requested in parallel
+            try {
+                return searchAsync(ingridQuery, startHit, num).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
 
-        // convert InGrid-query to QueryBuilder
-        BoolQuery.Builder query = queryConverter.convert(ingridQuery);
+        try {
+            return searchOnce(ingridQuery, startHit, num);
+        } catch (ElasticsearchException ex) {
+            if (!isIndexNotFound(ex)) throw ex;
+
+            // the alias might have been switched by another process, while the cached alias still points to the deleted index
+            log.info("Index not found, searching again with current aliases: " + ex.getMessage());
+            indexManager.invalidateMetadataCache();
+            return searchOnce(ingridQuery, startHit, num);
+        }
+    }
 
-        FunctionScoreQuery.Builder funcScoreQuery;
-        if (config.indexEnableBoost) {
-            funcScoreQuery = queryConverter.addScoreModifier(query.build()._toQuery());
+    private IngridHits searchOnce(IngridQuery ingridQuery, int startHit, int num) {
+
+        List<String> realIndexNames = getRealIndexNames();
+        if (realIndexNames == null) {
+            return new IngridHits(0, new IngridHit[0]);
+        }
+
+        // read generation before searching, so that changes during the search invalidate the result
+        long generation = indexManager.getIndexGeneration();
+        String cacheKey = resultCache == null ? null : SearchResultCache.createKey(ingridQuery, startHit, num, realIndexNames);
+        if (cacheKey != null) {
+            SearchResponse<ElasticDocument> cachedResponse = resultCache.get(cacheKey, generation);
+            if (cachedResponse != null) {
+                return convertSearchResponse(cachedResponse, cachedResponse, ingridQuery);
+            }
+        }
+
+        SearchRequest searchRequest = createSearchRequest(ingridQuery, startHit, num, realIndexNames, true);
+
+        // search!
+        try {
+            SearchResponse<ElasticDocument> searchResponse = indexManager.getClient().search(searchRequest, ElasticDocument.class);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, searchResponse, generation);
+            }
+            return convertSearchResponse(searchResponse, searchResponse, ingridQuery);
+        } catch (IOException ex) {
+            log.error("Search failed on indices: " + realIndexNames, ex);
+            return new IngridHits(0, new IngridHit[0]);
+        }
+    }
+
+    @Override
+    public CompletableFuture<IngridHits> searchAsync(IngridQuery ingridQuery, int startHit, int num) {
+        if (isCursorSearch(ingridQuery)) {
+            return searchWithCursorAsync(ingridQuery, num);
+        }
+        return searchAsync(ingridQuery, startHit, num, true);
+    }
+
+    private CompletableFuture<IngridHits> searchAsync(IngridQuery ingridQuery, int startHit, int num, boolean retryIfIndexNotFound) {
+
+        List<String> realIndexNames = getRealIndexNames();
+        if (realIndexNames == null) {
+            return CompletableFuture.completedFuture(new IngridHits(0, new IngridHit[0]));
+        }
+
+        long generation = indexManager.getIndexGeneration();
+        boolean separateFacets = isSeparateFacetRequest(ingridQuery);
+
+        CompletableFuture<SearchResponse<ElasticDocument>> hitsFuture = searchCachedAsync(
+                () -> createSearchRequest(ingridQuery, startHit, num, realIndexNames, !separateFacets),
+                resultCache == null ? null : SearchResultCache.createKey(ingridQuery, startHit, num, realIndexNames),
+                generation);
+
+        CompletableFuture<IngridHits> result;
+        if (separateFacets) {
+            // the facets do not depend on the page, so that the request can be answered by the shard request cache
+            CompletableFuture<SearchResponse<ElasticDocument>> facetsFuture = searchCachedAsync(
+                    () -> createFacetRequest(ingridQuery, realIndexNames),
+                    resultCache == null ? null : "facets|" + SearchResultCache.createKey(ingridQuery, 0, 0, realIndexNames),
+                    generation);
+            result = hitsFuture.thenCombine(facetsFuture, (hitsResponse, facetsResponse) -> convertSearchResponse(hitsResponse, facetsResponse, ingridQuery));
         } else {
-            funcScoreQuery = null;
+            result = hitsFuture.thenApply(searchResponse -> convertSearchResponse(searchResponse, searchResponse, ingridQuery));
         }
 
-        boolean isLocationSearch = containsBoundingBox(ingridQuery);
-        boolean hasFacets = ingridQuery.containsKey("FACETS");
+        return result.handle((hits, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.completedFuture(hits);
+            }
+            if (retryIfIndexNotFound && isIndexNotFound(ex)) {
+                // the alias might have been switched by another process, while the cached alias still points to the deleted index
+                log.info("Index not found, searching again with current aliases: " + ex.getMessage());
+                indexManager.invalidateMetadataCache();
+                return searchAsync(ingridQuery, startHit, num, false);
+            }
+            log.error("Search failed on indices: " + realIndexNames, ex);
+            return CompletableFuture.completedFuture(new IngridHits(0, new IngridHit[0]));
+        }).thenCompose(Function.identity());
+    }
 
-        // request grouping information from index if necessary
-        // see IndexImpl.getHitsFromResponse for usage
-        String groupedBy = ingridQuery.getGrouped();
-        String[] fields = null;
-        if (IngridQuery.GROUPED_BY_PARTNER.equalsIgnoreCase(groupedBy)) {
-            fields = new String[]{IngridQuery.PARTNER};
-        } else if (IngridQuery.GROUPED_BY_ORGANISATION.equalsIgnoreCase(groupedBy)) {
-            fields = new String[]{IngridQuery.PROVIDER};
-        }/* else if (IngridQuery.GROUPED_BY_DATASOURCE.equalsIgnoreCase( groupedBy )) {
-            // the necessary value id the results ID
-        }*/
+    private boolean isIndexNotFound(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        return cause instanceof ElasticsearchException
+                && "index_not_found_exception".equals(((ElasticsearchException) cause).error().type());
+    }
+
+    /**
+     * Walk through a result set with a point-in-time and search_after. The first page is requested with an
+     * empty continuation token in the query, the following pages with the token returned in the hits of the
+     * previous page. No token is returned with the last page. Facets are only returned with the first page.
+     * A failed request completes the result exceptionally, so that it is not mistaken for the end of the results,
+     * and the page can be requested again with the same token.
+     */
+    private CompletableFuture<IngridHits> searchWithCursorAsync(IngridQuery ingridQuery, int num) {
+        List<String> realIndexNames = getRealIndexNames();
+        if (realIndexNames == null) {
+            return CompletableFuture.completedFuture(new IngridHits(0, new IngridHit[0]));
+        }
 
+        Object tokenValue = ingridQuery.get(CONTINUATION_TOKEN);
+        ContinuationToken token = tokenValue == null || tokenValue.toString().isEmpty()
+                ? null
+                : ContinuationToken.decode(tokenValue.toString());
+        Time keepAlive = Time.of(t -> t.time(config.pitKeepAlive));
+
+        CompletableFuture<String> pitFuture = token == null
+                ? indexManager.getAsyncClient().openPointInTime(o -> o.index(realIndexNames).keepAlive(keepAlive)).thenApply(OpenPointInTimeResponse::id)
+                : CompletableFuture.completedFuture(token.getPitId());
+
+        return pitFuture
+                .thenCompose(pitId -> {
+                    // the facets do not change between the pages
+                    SearchRequest.Builder srb = createSearchRequestBuilder(ingridQuery, token == null)
+                            .pit(p -> p.id(pitId).keepAlive(keepAlive))
+                            .size(num);
+                    if (token != null) {
+                        srb.searchAfter(token.getSearchAfter());
+                    }
+                    CompletableFuture<SearchResponse<ElasticDocument>> response = indexManager.getAsyncClient().search(buildSearchRequest(srb), ElasticDocument.class);
+                    if (token == null) {
+                        // nobody gets a token for the point-in-time opened here
+                        response = response.whenComplete((searchResponse, ex) -> {
+                            if (ex != null) closePointInTime(pitId);
+                        });
+                    }
+                    return response;
+                })
+                .thenApply(searchResponse -> {
+                    IngridHits hits = convertSearchResponse(searchResponse, token == null ? searchResponse : null, ingridQuery);
+
+                    List<Hit<ElasticDocument>> pageHits = searchResponse.hits().hits();
+                    if (num > 0 && pageHits.size() == num) {
+                        // the id of the point-in-time can change between requests
+                        List<FieldValue> lastSortValues = pageHits.get(pageHits.size() - 1).sort();
+                        hits.put(CONTINUATION_TOKEN, new ContinuationToken(searchResponse.pitId(), lastSortValues).encode());
+                    } else {
+                        closePointInTime(searchResponse.pitId());
+                    }
+                    return hits;
+                })
+                .whenComplete((hits, ex) -> {
+                    if (ex != null) {
+                        log.error("Search with continuation token failed on indices: " + realIndexNames, ex);
+                    }
+                });
+    }
+
+    private void closePointInTime(String pitId) {
+        indexManager.getAsyncClient().closePointInTime(c -> c.id(pitId))
+                .whenComplete((response, ex) -> {
+                    if (ex != null) {
+                        log.warn("Could not close point-in-time, it will expire after " + config.pitKeepAlive, ex);
+                    }
+                });
+    }
+
+    private boolean isCursorSearch(IngridQuery ingridQuery) {
+        return ingridQuery.containsKey(CONTINUATION_TOKEN);
+    }
+
+    private boolean isSeparateFacetRequest(IngridQuery ingridQuery) {
+        return config.separateFacetRequest && ingridQuery.containsKey("FACETS");
+    }
+
+    /**
+     * Execute a search request asynchronously or get its response from the result cache if available.
+     *
+     * @param cacheKey is the key of the response in the result cache or null if it shall not be cached
+     */
+    private CompletableFuture<SearchResponse<ElasticDocument>> searchCachedAsync(Supplier<SearchRequest> request, String cacheKey, long generation) {
+        if (cacheKey != null) {
+            SearchResponse<ElasticDocument> cachedResponse = resultCache.get(cacheKey, generation);
+            if (cachedResponse != null) {
+                return CompletableFuture.completedFuture(cachedResponse);
+            }
+        }
+
+        return indexManager.getAsyncClient().search(request.get(), ElasticDocument.class)
+                .thenApply(searchResponse -> {
+                    if (cacheKey != null) {
+                        resultCache.put(cacheKey, searchResponse, generation);
+                    }
+                    return searchResponse;
+                });
+    }
+
+    /**
+     * Get the real indices of the active indices.
+     *
+     * @return the index names or null if there's no index to search on
+     */
+    private List<String> getRealIndexNames() {
         IndexInfo[] indexInfos = this.config.activeIndices;
 
         if (indexInfos.length == 0) {
             log.debug("No configured index to search on!");
-            return new IngridHits(0, new IngridHit[0]);
+            return null;
         }
 
         // if we are remotely connected to an elasticsearch node then get the real indices of the aliases
@@ -143,7 +355,27 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
                 realIndices.add(realIndex);
             }
         }
-        String[] realIndexNames = realIndices.toArray(new String[0]);
+        return realIndices;
+    }
+
+    /**
+     * Create the query for an InGrid query, including the filters for the active indices.
+     */
+    private Query createQuery(IngridQuery ingridQuery) {
+
+        // convert InGrid-query to QueryBuilder
+        BoolQuery.Builder query = queryConverter.convert(ingridQuery);
+
+        FunctionScoreQuery.Builder funcScoreQuery;
+        if (config.indexEnableBoost) {
+            funcScoreQuery = queryConverter.addScoreModifier(query.build()._toQuery());
+        } else {
+            funcScoreQuery = null;
+        }
+
+        boolean isLocationSearch = containsBoundingBox(ingridQuery);
+
+        IndexInfo[] indexInfos = this.config.activeIndices;
 
         BoolQuery.Builder indexTypeFilter = queryBuilderService.createIndexTypeFilter(indexInfos);
 
@@ -154,16 +386,45 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
             indexTypeFilter.filter(boolShould.build()._toQuery());
         }
 
+        return config.indexEnableBoost
+                ? QueryBuilders.bool().must(funcScoreQuery.build()._toQuery()).must(indexTypeFilter.build()._toQuery()).build()._toQuery()
+                : QueryBuilders.bool().must(query.build()._toQuery()).must(indexTypeFilter.build()._toQuery()).build()._toQuery();
+    }
+
+    /**
+     * Create the search request for an InGrid query.
+     *
+     * @param withFacets is true if the facets shall be requested together with the hits
+     */
+    private SearchRequest createSearchRequest(IngridQuery ingridQuery, int startHit, int num, List<String> realIndexNames, boolean withFacets) {
+        SearchRequest.Builder srb = createSearchRequestBuilder(ingridQuery, withFacets)
+                .index(realIndexNames)
+                .from(startHit).size(num);
+        return buildSearchRequest(srb);
+    }
+
+    /**
+     * Create the search request for an InGrid query without the indices and the paging information.
+     */
+    private SearchRequest.Builder createSearchRequestBuilder(IngridQuery ingridQuery, boolean withFacets) {
+
+        // request grouping information from index if necessary
+        // see IndexImpl.getHitsFromResponse for usage
+        String groupedBy = ingridQuery.getGrouped();
+        String[] fields = null;
+        if (IngridQuery.GROUPED_BY_PARTNER.equalsIgnoreCase(groupedBy)) {
+            fields = new String[]{IngridQuery.PARTNER};
+        } else if (IngridQuery.GROUPED_BY_ORGANISATION.equalsIgnoreCase(groupedBy)) {
+            fields = new String[]{IngridQuery.PROVIDER};
+        }/* else if (IngridQuery.GROUPED_BY_DATASOURCE.equalsIgnoreCase( groupedBy )) {
+            // the necessary value id the results ID
+        }*/
 
         // search prepare
         SearchRequest.Builder srb = new SearchRequest.Builder()
-                .index(Arrays.asList(realIndexNames))
-                // .setQuery( config.indexEnableBoost ? funcScoreQuery : query ) // Query
-                .query(config.indexEnableBoost
-                        ? QueryBuilders.bool().must(funcScoreQuery.build()._toQuery()).must(indexTypeFilter.build()._toQuery()).build()._toQuery()
-                        : QueryBuilders.bool().must(query.build()._toQuery()).must(indexTypeFilter.build()._toQuery()).build()._toQuery()) // Query
+                .query(createQuery(ingridQuery))
                 .storedFields("iPlugId")
-                .from(startHit).size(num).explain(false);
+                .explain(false);
 
         // Add sort by date to ES query if appropriate
         String rankingType = ingridQuery.getRankingType();
@@ -205,7 +466,7 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
         }
 
         // pre-processing: add facets/aggregations to the query
-        if (hasFacets) {
+        if (withFacets && ingridQuery.containsKey("FACETS")) {
             srb.aggregations(facetConverter.getAggregations(ingridQuery));
         }
 
@@ -213,30 +474,51 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
             srb.trackTotalHits(t -> t.enabled(true));
         }
 
+        return srb;
+    }
+
+    private SearchRequest buildSearchRequest(SearchRequest.Builder srb) {
         SearchRequest searchRequest = srb.build();
         if (log.isDebugEnabled()) {
             log.debug("Final Elastic Search Query: \n" + searchRequest);
         }
+        return searchRequest;
+    }
 
-        // search!
-        try {
-            SearchResponse<ElasticDocument> searchResponse = indexManager.getClient().search(searchRequest, ElasticDocument.class);
-
-            // convert to IngridHits
-            IngridHits hits = getHitsFromResponse(searchResponse, ingridQuery);
-
-            // post-processing: extract and convert facets to InGrid-Document
-            if (hasFacets) {
-                // add facets from response
-                IngridDocument facets = facetConverter.convertFacetResultsToDoc(searchResponse);
-                hits.put("FACETS", facets);
-            }
+    /**
+     * Create a request which only counts the facets of an InGrid query. The request does not depend on the
+     * requested page, so that its result can be taken from the shard request cache when paging.
+     */
+    private SearchRequest createFacetRequest(IngridQuery ingridQuery, List<String> realIndexNames) {
+        SearchRequest searchRequest = new SearchRequest.Builder()
+                .index(realIndexNames)
+                // no scores are needed for counting
+                .query(QueryBuilders.bool().filter(createQuery(ingridQuery)).build()._toQuery())
+                .size(0)
+                .requestCache(true)
+                .aggregations(facetConverter.getAggregations(ingridQuery))
+                .build();
+        if (log.isDebugEnabled()) {
+            log.debug("Final Elastic Search Facet Query: \n" + searchRequest);
+        }
+        return searchRequest;
+    }
 
-            return hits;
-        } catch (IOException ex) {
-            log.error("Search failed on indices: " + Arrays.toString(realIndexNames), ex);
-            return new IngridHits(0, new IngridHit[0]);
+    /**
+     * @param facetsResponse is the response containing the aggregations, which can be the same as the hits response
+     */
+    private IngridHits convertSearchResponse(SearchResponse<ElasticDocument> hitsResponse, SearchResponse<ElasticDocument> facetsResponse, IngridQuery ingridQuery) {
+        // convert to IngridHits
+        IngridHits hits = getHitsFromResponse(hitsResponse, ingridQuery);
+
+        // post-processing: extract and convert facets to InGrid-Document
+        if (facetsResponse != null && ingridQuery.containsKey("FACETS")) {
+            // add facets from response
+            IngridDocument facets = facetConverter.convertFacetResultsToDoc(facetsResponse);
+            hits.put("FACETS", facets);
         }
+
+        return hits;
     }
 
     private boolean containsBoundingBox(IngridQuery ingridQuery) {
@@ -316,15 +598,47 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
 
     @Override
     public IngridHitDetail getDetail(IngridHit hit, IngridQuery ingridQuery, String[] requestedFields) {
-        for (int i = 0; i < requestedFields.length; i++) {
-            requestedFields[i] = requestedFields[i].toLowerCase();
+        String[] allFields = getDetailFields(toLowerCase(requestedFields));
+
+        SearchResponse<ElasticDocument> searchResponse = null;
+        try {
+            SearchRequest build = createDetailRequest(hit, ingridQuery, allFields);
+            searchResponse = indexManager.getClient().search(build, ElasticDocument.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        String documentId = hit.getDocumentId();
-        String fromIndex = hit.getString(ELASTIC_SEARCH_INDEX);
-        String[] allFields = Stream
+
+        HitsMetadata<ElasticDocument> dHits = searchResponse.hits();
+        return createDetail(hit, dHits.hits().get(0), allFields);
+    }
+
+    @Override
+    public CompletableFuture<IngridHitDetail> getDetailAsync(IngridHit hit, IngridQuery ingridQuery, String[] requestedFields) {
+        String[] allFields = getDetailFields(toLowerCase(requestedFields));
+
+        return indexManager.getAsyncClient().search(createDetailRequest(hit, ingridQuery, allFields), ElasticDocument.class)
+                .thenApply(searchResponse -> createDetail(hit, searchResponse.hits().hits().get(0), allFields));
+    }
+
+    /**
+     * Lowercase field names into a new array, since the requested fields might be shared between concurrent requests.
+     */
+    private String[] toLowerCase(String[] fields) {
+        return Arrays.stream(fields)
+                .map(field -> field == null ? null : field.toLowerCase())
+                .toArray(String[]::new);
+    }
+
+    private String[] getDetailFields(String[] requestedFields) {
+        return Stream
                 .concat(Arrays.stream(detailFields), Arrays.stream(requestedFields))
                 .filter(Objects::nonNull)
                 .toArray(String[]::new);
+    }
+
+    private SearchRequest createDetailRequest(IngridHit hit, IngridQuery ingridQuery, String[] allFields) {
+        String documentId = hit.getDocumentId();
+        String fromIndex = hit.getString(ELASTIC_SEARCH_INDEX);
 
         // We have to search here again, to get a highlighted summary of the result!
         BoolQuery.Builder query = QueryBuilders.bool()
@@ -341,23 +655,47 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
                 .storedFields(List.of(allFields))
                 .explain(false);
 
+        addSummaryHighlight(srb, allFields);
+
+        return srb.build();
+    }
+
+    /**
+     * Create a request for the details of several hits from the same index.
+     */
+    private SearchRequest createDetailsRequest(String fromIndex, List<IngridHit> hits, IngridQuery ingridQuery, String[] allFields) {
+        List<Query> documentQueries = new ArrayList<>();
+        for (IngridHit hit : hits) {
+            String documentId = hit.getDocumentId();
+            documentQueries.add(QueryBuilders.match(m -> m.field(IngridDocument.DOCUMENT_UID).query(documentId)));
+        }
+
+        // We have to search here again, to get a highlighted summary of the result!
+        BoolQuery.Builder query = QueryBuilders.bool()
+                .filter(BoolQuery.of(b -> b.should(documentQueries))._toQuery())
+                .must(queryConverter.convert(ingridQuery).build()._toQuery());
+
+        SearchRequest.Builder srb = new SearchRequest.Builder()
+                .index(fromIndex)
+                .source(s -> s.fetch(true))
+                .query(query.build()._toQuery())
+                .from(0)
+                .size(hits.size())
+                .storedFields(List.of(allFields))
+                .explain(false);
+
+        addSummaryHighlight(srb, allFields);
+
+        return srb.build();
+    }
+
+    private void addSummaryHighlight(SearchRequest.Builder srb, String[] allFields) {
         if (Arrays.asList(allFields).contains(config.indexFieldSummary)) {
-            srb = srb.highlight(Highlight.of(h -> h
+            srb.highlight(Highlight.of(h -> h
 //                    .type(HighlighterType.Unified)
                     .fields(config.indexFieldSummary+"*", HighlightField.of(hf -> hf))
             ));
         }
-
-        SearchResponse<ElasticDocument> searchResponse = null;
-        try {
-            SearchRequest build = srb.build();
-            searchResponse = indexManager.getClient().search(build, ElasticDocument.class);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        HitsMetadata<ElasticDocument> dHits = searchResponse.hits();
-        return createDetail(hit, dHits.hits().get(0), allFields);
     }
 
     private IngridHitDetail createDetail(IngridHit hit, Hit<ElasticDocument> dHit, String[] requestedFields) {
@@ -446,57 +784,124 @@ public class IndexImpl implements ISearcher, IDetailer, IRecordLoader {
         return array;
     }
 
+    /**
+     * Get the details of several hits. The details of all hits from the same index are fetched with one request and
+     * those of different indices in parallel. Details which cannot be fetched that way are requested one by one, with at
+     * most "index.search.details.concurrency" requests at the same time. If "index.search.details.timeout" is set, then
+     * details not available until then are returned as null, otherwise a failing detail fails the whole call. The
+     * returned array always has one entry per hit, in the same order as the hits.
+     */
     @Override
     public IngridHitDetail[] getDetails(IngridHit[] hits, IngridQuery ingridQuery, String[] requestedFields) {
-        // TODO: use this optimization for fewer requests, especially when requesting map markers
-        /*String fromIndex = null;
-        String fromType = null;
-        List<IngridHitDetail> details = new ArrayList<>();
-        for (int i = 0; i < requestedFields.length; i++) {
-            requestedFields[i] = requestedFields[i].toLowerCase();
-        }
-        BoolQueryBuilder query = QueryBuilders
-                .boolQuery()
-                .must( queryConverter.convert( ingridQuery ) );
+        boolean hasDeadline = config.detailsTimeout > 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.detailsTimeout);
+
+        String[] fields = toLowerCase(requestedFields);
+        String[] allFields = getDetailFields(fields);
 
+        // fetch the details of all hits from the same index with one request, all indices in parallel
+        Map<String, List<IngridHit>> hitsByIndex = new LinkedHashMap<>();
         for (IngridHit hit : hits) {
-            String documentId = hit.getDocumentId();
-            fromIndex = hit.getString( ELASTIC_SEARCH_INDEX );
-            fromType = hit.getString( ELASTIC_SEARCH_INDEX_TYPE );
-            query.should(QueryBuilders.matchQuery(IngridDocument.DOCUMENT_UID, documentId));
-        }
-        if (fromIndex != null && fromType != null) {
-            // search prepare
-            SearchRequestBuilder srb = indexManager.getClient().prepareSearch( fromIndex )
-                    .setSearchType( SearchType.DEFAULT )
-                    .setQuery( query ) // Query
-                    .setFrom( 0 )
-                    .setSize( hits.length )
-                    .storedFields( requestedFields )
-                    .setExplain( false );
-
-            if(Arrays.stream(requestedFields).anyMatch(config.indexFieldSummary::equals)) {
-                srb = srb.highlighter( new HighlightBuilder().field(config.indexFieldSummary) );
+            hitsByIndex.computeIfAbsent(hit.getString(ELASTIC_SEARCH_INDEX), index -> new ArrayList<>()).add(hit);
+        }
+
+        List<CompletableFuture<SearchResponse<ElasticDocument>>> responses = new ArrayList<>();
+        for (Map.Entry<String, List<IngridHit>> entry : hitsByIndex.entrySet()) {
+            SearchRequest request = createDetailsRequest(entry.getKey(), entry.getValue(), ingridQuery, allFields);
+            responses.add(indexManager.getAsyncClient().search(request, ElasticDocument.class));
+        }
+
+        Map<String, Hit<ElasticDocument>> detailHits = new HashMap<>();
+        for (CompletableFuture<SearchResponse<ElasticDocument>> response : responses) {
+            SearchResponse<ElasticDocument> searchResponse = awaitResult(response, hasDeadline, deadline);
+            if (searchResponse != null) {
+                for (Hit<ElasticDocument> dHit : searchResponse.hits().hits()) {
+                    detailHits.put(dHit.index() + "/" + dHit.id(), dHit);
+                }
             }
-            SearchResponse searchResponse = srb.execute().actionGet();
+        }
 
-            SearchHits dHits = searchResponse.getHits();
-            for (int i = 0; i < hits.length; i++) {
-                IngridHit hit = hits[i];
-                SearchHit dHit = dHits.getAt(i);
-                details.add( createDetail(hit, dHit, requestedFields) );
+        // request missing details one by one, but only a limited number at the same time
+        Semaphore permits = new Semaphore(Math.max(1, config.detailsConcurrency));
+        Map<Integer, CompletableFuture<IngridHitDetail>> singleDetails = new HashMap<>();
+        for (int i = 0; i < hits.length; i++) {
+            IngridHit hit = hits[i];
+            if (detailHits.containsKey(hit.getString(ELASTIC_SEARCH_INDEX) + "/" + hit.getDocumentId())) continue;
+
+            if (!acquirePermit(permits, hasDeadline, deadline)) break;
+            CompletableFuture<IngridHitDetail> detail = getDetailAsync(hit, ingridQuery, fields);
+            detail.whenComplete((result, ex) -> permits.release());
+            singleDetails.put(i, detail);
+        }
 
+        // one detail per hit in the order of the hits, so that callers can match them by position
+        IngridHitDetail[] details = new IngridHitDetail[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            IngridHit hit = hits[i];
+            Hit<ElasticDocument> dHit = detailHits.get(hit.getString(ELASTIC_SEARCH_INDEX) + "/" + hit.getDocumentId());
+            if (dHit != null) {
+                details[i] = createDetail(hit, dHit, allFields);
+            } else if (hasDeadline) {
+                // partial results are only accepted if a deadline is configured, missing details stay null
+                details[i] = singleDetails.containsKey(i) ? awaitResult(singleDetails.get(i), true, deadline) : null;
+                if (details[i] == null) {
+                    log.warn("Could not fetch detail of document " + hit.getDocumentId() + " from index " + hit.getString(ELASTIC_SEARCH_INDEX));
+                }
+            } else {
+                details[i] = joinDetail(singleDetails.get(i), hit);
             }
-        }*/
+        }
+        return details;
+    }
 
-        for (int i = 0; i < requestedFields.length; i++) {
-            requestedFields[i] = requestedFields[i].toLowerCase();
+    /**
+     * Wait for a detail without deadline, failures are passed on to the caller.
+     */
+    private IngridHitDetail joinDetail(CompletableFuture<IngridHitDetail> detail, IngridHit hit) {
+        if (detail == null) {
+            throw new RuntimeException("Interrupted while fetching detail of document " + hit.getDocumentId());
         }
-        List<IngridHitDetail> details = new ArrayList<>();
-        for (IngridHit hit : hits) {
-            details.add(getDetail(hit, ingridQuery, requestedFields));
+        try {
+            return detail.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private boolean acquirePermit(Semaphore permits, boolean hasDeadline, long deadline) {
+        try {
+            if (!hasDeadline) {
+                permits.acquire();
+                return true;
+            }
+            return permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Wait for the result of a request until the deadline.
+     *
+     * @return the result or null if the request failed or did not finish in time
+     */
+    private <T> T awaitResult(CompletableFuture<T> future, boolean hasDeadline, long deadline) {
+        try {
+            if (!hasDeadline) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            log.warn("Fetching details failed", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
-        return details.toArray(new IngridHitDetail[0]);
     }
 
     @Override
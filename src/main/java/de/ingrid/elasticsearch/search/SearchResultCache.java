@@ -0,0 +1,182 @@
+/*-
+ * **************************************************-
+ * InGrid Elasticsearch Tools
+ * ==================================================
+ * Copyright (C) 2014 - 2026 wemove digital solutions GmbH
+ * ==================================================
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be
+ * approved by the European Commission - subsequent versions of the
+ * EUPL (the "Licence");
+ * 
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ * 
+ * https://joinup.ec.europa.eu/software/page/eupl
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ * **************************************************#
+ */
+package de.ingrid.elasticsearch.search;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import de.ingrid.elasticsearch.ElasticConfig;
+import de.ingrid.utils.ElasticDocument;
+import de.ingrid.utils.query.IngridQuery;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches search responses of recurring queries. The key is a canonical form of the InGrid query, so that
+ * equal queries hit the same entry independent of the order their parameters were added. An entry is only
+ * valid for the index generation it was loaded with, so any change done through the IndexManager makes
+ * all entries outdated. Changes done by other clients are visible after the TTL.
+ * <p>
+ * The responses are cached instead of the converted hits, since hits are modified by the callers.
+ */
+public class SearchResultCache {
+
+    private static class Entry {
+        private final SearchResponse<ElasticDocument> response;
+        private final long generation;
+        private final long expires;
+        private final long weight;
+
+        private Entry(SearchResponse<ElasticDocument> response, long generation, long expires, long weight) {
+            this.response = response;
+            this.generation = generation;
+            this.expires = expires;
+            this.weight = weight;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long maxWeight;
+
+    private final long ttl;
+
+    // access ordered, so that the least recently used entries are removed first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight = 0;
+
+    public SearchResultCache(ElasticConfig config) {
+        this(config.searchCacheMaxEntries, config.searchCacheMaxWeight, config.searchCacheTtl);
+    }
+
+    /**
+     * @param maxEntries is the maximum number of cached responses
+     * @param maxWeight is the maximum sum of hits and aggregations of all cached responses
+     * @param ttl is the time in milliseconds an entry is valid
+     */
+    public SearchResultCache(int maxEntries, long maxWeight, long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * @return the cached response or null if there's none or it was loaded for another index generation
+     */
+    public synchronized SearchResponse<ElasticDocument> get(String key, long generation) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation || entry.expires - System.nanoTime() <= 0) {
+            remove(key);
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Store a response, which was requested while the given index generation was current. Incomplete
+     * responses are not cached.
+     */
+    public synchronized void put(String key, SearchResponse<ElasticDocument> response, long generation) {
+        if (response.timedOut() || !response.shards().failures().isEmpty()) {
+            return;
+        }
+
+        long entryWeight = response.hits().hits().size() + response.aggregations().size() + 1;
+        if (entryWeight > maxWeight || maxEntries <= 0) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, new Entry(response, generation, System.nanoTime() + ttl, entryWeight));
+        weight += entryWeight;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    /**
+     * Create a key which is equal for all queries leading to the same search request.
+     */
+    public static String createKey(IngridQuery query, int startHit, int num, List<String> indices) {
+        StringBuilder key = new StringBuilder();
+        key.append(indices).append('|').append(startHit).append('|').append(num).append('|');
+        appendCanonical(key, query);
+        return key.toString();
+    }
+
+    private static void appendCanonical(StringBuilder key, Object value) {
+        if (value instanceof Map) {
+            // the type is part of the key, since e.g. term and field queries can have the same content
+            key.append(value.getClass().getSimpleName()).append('{');
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                key.append(entry.getKey()).append('=');
+                appendCanonical(key, entry.getValue());
+                key.append(',');
+            }
+            key.append('}');
+        } else if (value instanceof Object[]) {
+            appendAll(key, Arrays.asList((Object[]) value));
+        } else if (value instanceof Collection) {
+            appendAll(key, (Collection<?>) value);
+        } else {
+            key.append(value);
+        }
+    }
+
+    private static void appendAll(StringBuilder key, Collection<?> values) {
+        key.append('[');
+        for (Object item : values) {
+            appendCanonical(key, item);
+            key.append(',');
+        }
+        key.append(']');
+    }
+}
@@ -48,13 +48,11 @@ public class ConfigurableFacetClassProcessor implements IFacetDefinitionProcesso
         for (FacetDefinition facetDef : facetDefinitions) {
             if (facetDef.getClasses() != null) { 
                 for (FacetClassDefinition facetClass : facetDef.getClasses()) {
-                    for (String filterFacetClass : facetFilterDefinitions.keySet()) {
-                        if (facetClass.getName().equals(filterFacetClass)) {
-                            for (String facetClassQueryFragment : facetFilterDefinitions.get(filterFacetClass).keySet()) {
-                                if (facetClass.getFragment() != null && facetClass.getFragment().equals(facetClassQueryFragment)) {
-                                    facetClass.setQueryFragment(facetFilterDefinitions.get(filterFacetClass).get(facetClassQueryFragment));
-                                }
-                            }
+                    Map<String, String> substitutions = facetFilterDefinitions.get(facetClass.getName());
+                    if (substitutions != null && facetClass.getFragment() != null) {
+                        String substitution = substitutions.get(facetClass.getFragment());
+                        if (substitution != null) {
+                            facetClass.setQueryFragment(substitution);
                         }
                     }
                 }